@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+/**
+ * Counters of the result cache of one key, see
+ * {@link LuceneIndexService#getCacheStatistics(String)}. The counters are
+ * kept since the cache was first enabled for the key and are updated as
+ * the cache is used, so two reads of the same statistics may differ.
+ */
+public class CacheStatistics
+{
+    private final String key;
+    private volatile long hits;
+    private volatile long misses;
+    private volatile long evictions;
+    private volatile int entries;
+    private volatile long bytes;
+    
+    CacheStatistics( String key )
+    {
+        this.key = key;
+    }
+    
+    /**
+     * @return the key these statistics are for.
+     */
+    public String getKey()
+    {
+        return key;
+    }
+    
+    /**
+     * @return the number of lookups which were served from the cache.
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+    
+    /**
+     * @return the number of lookups which had to search the index.
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+    
+    /**
+     * @return the number of entries evicted to stay within the max number
+     * of entries for the key or the max bytes of all keys.
+     */
+    public long getEvictions()
+    {
+        return evictions;
+    }
+    
+    /**
+     * @return the number of values currently cached.
+     */
+    public int getEntries()
+    {
+        return entries;
+    }
+    
+    /**
+     * @return an estimate of the bytes used by the currently cached values.
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+    
+    /**
+     * @return the ratio of lookups which were served from the cache, or
+     * {@code 0} if there haven't been any lookups.
+     */
+    public double getHitRatio()
+    {
+        long hits = this.hits;
+        long lookups = hits + this.misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+    
+    // Only updated by the ResultCache, with the monitor of the key held. A
+    // replaced cache of the key may still be cleared while the new one is
+    // used, hence the synchronization.
+    
+    synchronized void hit()
+    {
+        hits++;
+    }
+    
+    synchronized void miss()
+    {
+        misses++;
+    }
+    
+    synchronized void added( long entryBytes )
+    {
+        entries++;
+        bytes += entryBytes;
+    }
+    
+    synchronized void resized( long oldBytes, long newBytes )
+    {
+        bytes += newBytes - oldBytes;
+    }
+    
+    synchronized void removed( long entryBytes, boolean evicted )
+    {
+        entries--;
+        bytes -= entryBytes;
+        if ( evicted )
+        {
+            evictions++;
+        }
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "CacheStatistics[" + key + ", hits:" + hits + ", misses:" +
+            misses + ", evictions:" + evictions + ", entries:" + entries +
+            ", bytes:" + bytes + "]";
+    }
+}
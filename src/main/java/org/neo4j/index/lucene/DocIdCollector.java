@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TotalHitCountCollector;
+
+/**
+ * Collects the ids of all the documents matching a query in one pass,
+ * without scoring them. Replaces the Hits class from Lucene 2.x, which
+ * re-ran the query with a doubled number of hits every time the caller
+ * iterated past what it had fetched so far. Ordered results (sorted, or by
+ * relevance) are counted first and then sorted in a single search sized to
+ * the number of hits, see {@link #search(IndexSearcher, Query, Sort)}.
+ */
+class DocIdCollector extends Collector
+{
+    /**
+     * The ids of the documents matching a query, in the order of the
+     * search.
+     */
+    interface DocIds
+    {
+        /**
+         * @return the number of matching documents.
+         */
+        int size();
+        
+        /**
+         * @param index the position in the result, less than
+         * {@link #size()}.
+         * @return the id of the document at {@code index}.
+         */
+        int get( int index );
+    }
+    
+    private int[] docIds = new int[16];
+    private int size;
+    private int docBase;
+    
+    /**
+     * Returns the ids of all the documents matching {@code query}, in
+     * index order.
+     * 
+     * @param searcher the searcher to search with.
+     * @param query the query to search for.
+     * @return the ids of the matching documents.
+     * @throws IOException if the search fails.
+     */
+    static int[] search( IndexSearcher searcher, Query query )
+        throws IOException
+    {
+        DocIdCollector collector = new DocIdCollector();
+        searcher.search( query, collector );
+        return collector.getDocIds();
+    }
+    
+    /**
+     * Returns the ids of the documents matching {@code query}, in index
+     * order or, if {@code sortingOrNull} isn't {@code null}, in the order of
+     * that sort (which may be {@link Sort#RELEVANCE}). A sorted search
+     * goes through the hits twice, once to count them and once to sort all
+     * of them, instead of re-running the search for more hits as the
+     * caller gets past the ones fetched so far.
+     * 
+     * @param searcher the searcher to search with.
+     * @param query the query to search for.
+     * @param sortingOrNull the sort order of the result, or {@code null}.
+     * @return the ids of the matching documents.
+     * @throws IOException if the search fails.
+     */
+    static DocIds search( IndexSearcher searcher, Query query,
+        Sort sortingOrNull ) throws IOException
+    {
+        final int[] docIds = sortingOrNull == null ?
+            search( searcher, query ) :
+            searchSorted( searcher, query, sortingOrNull );
+        return new DocIds()
+        {
+            public int size()
+            {
+                return docIds.length;
+            }
+            
+            public int get( int index )
+            {
+                return docIds[index];
+            }
+        };
+    }
+    
+    private static int[] searchSorted( IndexSearcher searcher, Query query,
+        Sort sort ) throws IOException
+    {
+        // Sized to the hits, a queue sized to the max doc would be huge
+        TotalHitCountCollector counter = new TotalHitCountCollector();
+        searcher.search( query, counter );
+        if ( counter.getTotalHits() == 0 )
+        {
+            return new int[0];
+        }
+        ScoreDoc[] hits = searcher.search( query, null,
+            counter.getTotalHits(), sort ).scoreDocs;
+        int[] docIds = new int[hits.length];
+        for ( int i = 0; i < hits.length; i++ )
+        {
+            docIds[i] = hits[i].doc;
+        }
+        return docIds;
+    }
+    
+    @Override
+    public void setScorer( Scorer scorer )
+    {
+        // Hits aren't scored
+    }
+
+    @Override
+    public void collect( int doc )
+    {
+        if ( size == docIds.length )
+        {
+            int[] newDocIds = new int[docIds.length * 2];
+            System.arraycopy( docIds, 0, newDocIds, 0, size );
+            docIds = newDocIds;
+        }
+        docIds[size++] = docBase + doc;
+    }
+
+    @Override
+    public void setNextReader( IndexReader reader, int docBase )
+    {
+        this.docBase = docBase;
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder()
+    {
+        // Keeps the result in index order
+        return false;
+    }
+    
+    int[] getDocIds()
+    {
+        int[] result = new int[size];
+        System.arraycopy( docIds, 0, result, 0, size );
+        return result;
+    }
+}
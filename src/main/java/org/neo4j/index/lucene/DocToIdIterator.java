@@ -19,25 +19,25 @@
  */
 package org.neo4j.index.lucene;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
-
-import org.apache.lucene.document.Document;
+import org.apache.lucene.search.IndexSearcher;
+import org.neo4j.index.lucene.DocIdCollector.DocIds;
 import org.neo4j.helpers.collection.PrefetchingIterator;
 
 class DocToIdIterator extends PrefetchingIterator<Long>
 {
-    private final Iterator<Document> docs;
-    private final Collection<Long> exclude;
+    private final NodeIdLookup nodeIds;
+    private final DocIds docIds;
+    private int index;
+    private final LongSet exclude;
     private final IndexSearcherRef searcherOrNull;
-    private final Set<Long> alreadyReturnedIds = new HashSet<Long>();
+    private final LongSet alreadyReturnedIds = new LongSet();
+    private boolean closed;
     
-    DocToIdIterator( Iterator<Document> docs, Collection<Long> exclude,
-        IndexSearcherRef searcherOrNull )
+    DocToIdIterator( IndexSearcher searcher, DocIds docIds,
+        LongSet exclude, IndexSearcherRef searcherOrNull )
     {
-        this.docs = docs;
+        this.nodeIds = new NodeIdLookup( searcher.getIndexReader() );
+        this.docIds = docIds;
         this.exclude = exclude;
         this.searcherOrNull = searcherOrNull;
     }
@@ -48,35 +48,40 @@ class DocToIdIterator extends PrefetchingIterator<Long>
         Long result = null;
         while ( result == null )
         {
-            if ( !docs.hasNext() )
+            if ( index >= docIds.size() )
             {
-                endReached();
+                close();
                 break;
             }
-            Document doc = docs.next();
-            Long id = Long.valueOf(
-                doc.getField( LuceneIndexService.DOC_ID_KEY ).stringValue() );
-            if ( exclude == null || !exclude.contains( id ) )
+            long id = nodeIds.getNodeId( docIds.get( index++ ) );
+            if ( ( exclude == null || !exclude.contains( id ) ) &&
+                alreadyReturnedIds.add( id ) )
             {
-                if ( alreadyReturnedIds.add( id ) )
-                {
-                    result = id;
-                }
+                result = id;
             }
         }
         return result;
     }
     
-    private void endReached()
+    /**
+     * Releases the searcher reference held by this iterator. Called when
+     * the end is reached, but can also be called before that to abandon
+     * the iteration. Calling it more than once has no effect.
+     */
+    void close()
     {
-        if ( this.searcherOrNull != null )
+        if ( !this.closed )
         {
-            this.searcherOrNull.closeStrict();
+            this.closed = true;
+            if ( this.searcherOrNull != null )
+            {
+                this.searcherOrNull.release();
+            }
         }
     }
 
     public int size()
     {
-        return ( ( HitsIterator ) this.docs ).size();
+        return this.docIds.size();
     }
 }
@@ -0,0 +1,385 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the commands of group committed transactions durable until their
+ * group has been flushed to the indexes, see
+ * {@link LuceneDataSource#GROUP_COMMIT}. The logical log marks a
+ * transaction as done as soon as it has been applied to the writers, so
+ * without this a crash before the group boundary would lose it.
+ * <p>
+ * Each group boundary rotates to a new file and the files up to that
+ * boundary are deleted once the group has been flushed. The entries left
+ * when the data source starts are replayed, skipping what the indexes
+ * already have according to their applied transaction ids, see
+ * {@link IndexFormat#getAppliedTxId(org.apache.lucene.store.Directory)}.
+ * <p>
+ * Appending an entry only writes it, committers force their entries with
+ * {@link #force(long)} once they've let go of their key locks. One of the
+ * committers waiting to force forces the entries of all of them, so
+ * concurrent commits share an fsync instead of queueing up for one each.
+ * <p>
+ * An entry is its length, a checksum and the transaction id followed by
+ * the encoded {@link LuceneBatchCommand}s of the transaction. Reading
+ * stops at the first entry which is cut short or doesn't match its
+ * checksum, i.e. an entry which was being written when the JVM died.
+ */
+class GroupCommitJournal
+{
+    private static final String PREFIX = "lucene-group-commit.";
+    private static final int HEADER_SIZE = 8;
+    
+    /**
+     * A transaction read from the journal.
+     */
+    static class Entry
+    {
+        final long txId;
+        final List<LuceneBatchCommand> batches;
+        
+        Entry( long txId, List<LuceneBatchCommand> batches )
+        {
+            this.txId = txId;
+            this.batches = batches;
+        }
+    }
+    
+    private final File dir;
+    private long currentFile;
+    private FileChannel channel;
+    // Entries are numbered as they're written, all entries up to forced
+    // are on disk. A committer is forcing while forcing is set, the others
+    // wait for it.
+    private long written;
+    private long forced;
+    private boolean forcing;
+    
+    /**
+     * @param dir the directory to keep the journal files in.
+     */
+    GroupCommitJournal( File dir )
+    {
+        this.dir = dir;
+        long[] files = listFiles();
+        this.currentFile = files.length > 0 ? files[files.length - 1] + 1 : 0;
+    }
+    
+    private long[] listFiles()
+    {
+        String[] names = dir.list( new FilenameFilter()
+        {
+            public boolean accept( File dir, String name )
+            {
+                return name.startsWith( PREFIX );
+            }
+        } );
+        List<Long> numbers = new ArrayList<Long>();
+        for ( String name : names != null ? names : new String[0] )
+        {
+            try
+            {
+                numbers.add( Long.parseLong( name.substring( PREFIX.length() ) ) );
+            }
+            catch ( NumberFormatException e )
+            {
+                // Not one of ours
+            }
+        }
+        long[] result = new long[numbers.size()];
+        for ( int i = 0; i < result.length; i++ )
+        {
+            result[i] = numbers.get( i );
+        }
+        Arrays.sort( result );
+        return result;
+    }
+    
+    private File file( long number )
+    {
+        return new File( dir, PREFIX + number );
+    }
+    
+    /**
+     * Appends a transaction to the current file, without forcing it to
+     * disk.
+     * 
+     * @param txId the id of the transaction.
+     * @param batches the commands of the transaction, one batch per key.
+     * @return the number of the entry, to pass to {@link #force(long)}.
+     * @throws IOException if the entry couldn't be written.
+     */
+    synchronized long append( long txId, Collection<LuceneBatchCommand> batches )
+        throws IOException
+    {
+        List<byte[]> payloads = new ArrayList<byte[]>( batches.size() );
+        int bodySize = 12;
+        for ( LuceneBatchCommand batch : batches )
+        {
+            byte[] payload = batch.encode();
+            payloads.add( payload );
+            bodySize += 4 + payload.length;
+        }
+        ByteBuffer body = ByteBuffer.allocate( bodySize );
+        body.putLong( txId );
+        body.putInt( payloads.size() );
+        for ( byte[] payload : payloads )
+        {
+            body.putInt( payload.length );
+            body.put( payload );
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update( body.array() );
+        ByteBuffer entry = ByteBuffer.allocate( HEADER_SIZE + bodySize );
+        entry.putInt( bodySize );
+        entry.putInt( (int) checksum.getValue() );
+        entry.put( body.array() );
+        entry.flip();
+        
+        if ( channel == null )
+        {
+            channel = new RandomAccessFile( file( currentFile ), "rw" ).getChannel();
+            channel.position( channel.size() );
+        }
+        while ( entry.hasRemaining() )
+        {
+            channel.write( entry );
+        }
+        return ++written;
+    }
+    
+    /**
+     * Makes sure that the entry {@code number}, and the ones before it, are
+     * on disk. If another thread is forcing already this waits for it and
+     * then forces whatever it didn't cover, with one fsync for all the
+     * waiting threads.
+     * 
+     * @param number the number of the entry, see
+     * {@link #append(long, Collection)}.
+     * @throws IOException if the entries couldn't be forced.
+     */
+    void force( long number ) throws IOException
+    {
+        while ( true )
+        {
+            FileChannel toForce;
+            long target;
+            synchronized ( this )
+            {
+                while ( forcing && forced < number )
+                {
+                    waitForForce();
+                }
+                if ( forced >= number )
+                {
+                    return;
+                }
+                forcing = true;
+                toForce = channel;
+                target = written;
+            }
+            boolean success = false;
+            try
+            {
+                // The channel can't be closed while forcing is set, a file
+                // which has been rotated away from was forced then
+                if ( toForce != null )
+                {
+                    toForce.force( false );
+                }
+                success = true;
+            }
+            finally
+            {
+                synchronized ( this )
+                {
+                    forcing = false;
+                    if ( success && target > forced )
+                    {
+                        forced = target;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+    
+    private void waitForForce() throws IOException
+    {
+        try
+        {
+            wait();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while waiting for the " +
+                "group commit journal to be forced" );
+        }
+    }
+    
+    /**
+     * Forces and closes the current file. Waits for a force in progress,
+     * which mustn't have its channel closed underneath it.
+     */
+    private void closeChannel() throws IOException
+    {
+        while ( forcing )
+        {
+            waitForForce();
+        }
+        if ( channel != null )
+        {
+            channel.force( false );
+            channel.close();
+            channel = null;
+        }
+        forced = written;
+    }
+    
+    /**
+     * Starts a new file for the entries to come, called at a group
+     * boundary.
+     * 
+     * @return the number of the last file which may hold entries of the
+     * group, to be passed to {@link #deleteUpTo(long)} once the group has
+     * been flushed.
+     * @throws IOException if the current file couldn't be closed.
+     */
+    synchronized long rotate() throws IOException
+    {
+        closeChannel();
+        return currentFile++;
+    }
+    
+    /**
+     * Deletes the files up to and including {@code number}.
+     * 
+     * @param number the last file to delete, see {@link #rotate()}.
+     */
+    synchronized void deleteUpTo( long number )
+    {
+        for ( long file : listFiles() )
+        {
+            if ( file <= number )
+            {
+                file( file ).delete();
+            }
+        }
+    }
+    
+    /**
+     * Reads all the entries in the journal, oldest first.
+     * 
+     * @return the entries.
+     * @throws IOException if an entry couldn't be read.
+     */
+    synchronized List<Entry> readAll() throws IOException
+    {
+        List<Entry> entries = new ArrayList<Entry>();
+        for ( long file : listFiles() )
+        {
+            FileChannel in = new RandomAccessFile( file( file ), "r" ).getChannel();
+            try
+            {
+                readEntries( in, entries );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        return entries;
+    }
+    
+    private static void readEntries( FileChannel in, List<Entry> entries )
+        throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        while ( true )
+        {
+            header.clear();
+            if ( !readFully( in, header ) )
+            {
+                return;
+            }
+            header.flip();
+            int bodySize = header.getInt();
+            int expectedChecksum = header.getInt();
+            if ( bodySize < 12 || bodySize > in.size() - in.position() )
+            {
+                return;
+            }
+            ByteBuffer body = ByteBuffer.allocate( bodySize );
+            if ( !readFully( in, body ) )
+            {
+                return;
+            }
+            CRC32 checksum = new CRC32();
+            checksum.update( body.array() );
+            if ( (int) checksum.getValue() != expectedChecksum )
+            {
+                return;
+            }
+            body.flip();
+            long txId = body.getLong();
+            int count = body.getInt();
+            List<LuceneBatchCommand> batches =
+                new ArrayList<LuceneBatchCommand>( count );
+            for ( int i = 0; i < count; i++ )
+            {
+                byte[] payload = new byte[body.getInt()];
+                body.get( payload );
+                batches.add( LuceneBatchCommand.decode( ByteBuffer.wrap( payload ) ) );
+            }
+            entries.add( new Entry( txId, batches ) );
+        }
+    }
+    
+    private static boolean readFully( FileChannel in, ByteBuffer buffer )
+        throws IOException
+    {
+        while ( buffer.hasRemaining() )
+        {
+            if ( in.read( buffer ) == -1 )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    synchronized void close() throws IOException
+    {
+        closeChannel();
+    }
+}
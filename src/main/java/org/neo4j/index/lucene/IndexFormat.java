@@ -0,0 +1,247 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * The format of the documents in the lucene indexes, shared by the data
+ * sources and the batch inserters. The format version is kept in the
+ * commit user data of each index, so every commit must go through
+ * {@link #commit(IndexWriter)}.
+ * <p>
+ * Version 1 stored the node id as a decimal string in a stored field.
+ * Version 2 indexes it as a single prefix coded numeric term, which isn't
+ * stored since the ids are read from the field cache, see
+ * {@link NodeIdLookup}. Version 3 adds a term combining the id and the
+ * exact value of the document, so that removing an entry is a term delete
+ * instead of a query delete. Indexes in an older format are rebuilt in the
+ * current format when the {@link LuceneDataSource} starts, before recovery,
+ * or when the batch inserter opens a writer for them.
+ * <p>
+ * The commit user data also holds the id of the last transaction applied
+ * to the index, see {@link #getAppliedTxId(Directory)}, so that recovery
+ * can skip transactions which already made it to disk.
+ */
+class IndexFormat
+{
+    static final String VERSION_KEY = "neo4j.index.format";
+    static final int CURRENT_VERSION = 3;
+    
+    static final String APPLIED_TX_KEY = "neo4j.applied.tx";
+    
+    static final String DOC_ID_VALUE_KEY = "id_value";
+    
+    /**
+     * Creates documents when an index is rebuilt, see
+     * {@link IndexFormat#migrateIfNeeded(Directory, IndexWriterConfig,
+     * String, DocumentFactory)}.
+     */
+    interface DocumentFactory
+    {
+        void fillDocument( Document document, long nodeId, Object value );
+    }
+    
+    private IndexFormat()
+    {
+    }
+    
+    static void addNodeId( Document document, long nodeId, Object value )
+    {
+        // Only the full precision term, no range queries are done on ids
+        document.add( new NumericField( LuceneIndexService.DOC_ID_KEY,
+            Integer.MAX_VALUE, Field.Store.NO, true ).setLongValue( nodeId ) );
+        Field idValue = new Field( DOC_ID_VALUE_KEY, idValue( nodeId, value ),
+            Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS );
+        idValue.setOmitTermFreqAndPositions( true );
+        document.add( idValue );
+    }
+    
+    static Term nodeIdTerm( long nodeId )
+    {
+        return new Term( LuceneIndexService.DOC_ID_KEY,
+            NumericUtils.longToPrefixCoded( nodeId ) );
+    }
+    
+    /**
+     * @param nodeId the node id.
+     * @param valueOrNull the value, or {@code null} for all values.
+     * @return the term matching the documents of {@code nodeId} with
+     * {@code valueOrNull}, or all documents of {@code nodeId} if it's
+     * {@code null}.
+     */
+    static Term deleteTerm( long nodeId, Object valueOrNull )
+    {
+        return valueOrNull == null ? nodeIdTerm( nodeId ) :
+            new Term( DOC_ID_VALUE_KEY, idValue( nodeId, valueOrNull ) );
+    }
+    
+    private static String idValue( long nodeId, Object value )
+    {
+        // The prefix coded id has a fixed length so no separator is needed
+        return NumericUtils.longToPrefixCoded( nodeId ) + value;
+    }
+    
+    static void commit( IndexWriter writer ) throws IOException
+    {
+        commit( writer, -1 );
+    }
+    
+    /**
+     * Commits {@code writer}, recording the format version and the id of
+     * the last transaction applied to it.
+     * 
+     * @param writer the writer to commit.
+     * @param appliedTxId the id of the last transaction applied to the
+     * index, or {@code -1} if it isn't known.
+     * @throws IOException if the commit failed.
+     */
+    static void commit( IndexWriter writer, long appliedTxId )
+        throws IOException
+    {
+        Map<String,String> data = new HashMap<String,String>();
+        data.put( VERSION_KEY, "" + CURRENT_VERSION );
+        if ( appliedTxId != -1 )
+        {
+            data.put( APPLIED_TX_KEY, "" + appliedTxId );
+        }
+        writer.commit( data );
+    }
+    
+    /**
+     * @param dir the index directory.
+     * @return the id of the last transaction applied to the index in
+     * {@code dir} as of its last commit, or {@code -1} if there's no index
+     * there or it wasn't recorded.
+     * @throws IOException if the index couldn't be read.
+     */
+    static long getAppliedTxId( Directory dir ) throws IOException
+    {
+        if ( !IndexReader.indexExists( dir ) )
+        {
+            return -1;
+        }
+        String txId = IndexReader.getCommitUserData( dir ).get( APPLIED_TX_KEY );
+        return txId != null ? Long.parseLong( txId ) : -1;
+    }
+    
+    /**
+     * @param dir the index directory.
+     * @return the format version of the index in {@code dir}, or
+     * {@link #CURRENT_VERSION} if there's no index there yet.
+     * @throws IOException if the index couldn't be read.
+     */
+    static int getVersion( Directory dir ) throws IOException
+    {
+        if ( !IndexReader.indexExists( dir ) )
+        {
+            return CURRENT_VERSION;
+        }
+        String version = IndexReader.getCommitUserData( dir ).get( VERSION_KEY );
+        return version != null ? Integer.parseInt( version ) : 1;
+    }
+    
+    /**
+     * Rebuilds the index in {@code dir} in the current format if it's in an
+     * older format. The values are read from the terms of
+     * {@code valueKey}, which must be a field indexed with the exact value
+     * of each document. The applied transaction id of the index, see
+     * {@link #getAppliedTxId(Directory)}, is carried over to the rebuilt one.
+     * 
+     * @param dir the index directory.
+     * @param config the config to open the rebuilding writer with.
+     * @param valueKey the field holding the exact values.
+     * @param factory creates the rebuilt documents.
+     * @throws IOException if the index couldn't be rebuilt.
+     */
+    static void migrateIfNeeded( Directory dir, IndexWriterConfig config,
+        String valueKey, DocumentFactory factory ) throws IOException
+    {
+        if ( getVersion( dir ) == CURRENT_VERSION )
+        {
+            return;
+        }
+        
+        long appliedTxId = getAppliedTxId( dir );
+        IndexReader reader = IndexReader.open( dir, true );
+        try
+        {
+            // Replaces the old index when committed, the reader keeps
+            // reading from the old one in the meantime
+            config.setOpenMode( OpenMode.CREATE );
+            IndexWriter writer = new IndexWriter( dir, config );
+            try
+            {
+                NodeIdLookup nodeIds = new NodeIdLookup( reader );
+                TermEnum terms = reader.terms( new Term( valueKey, "" ) );
+                TermDocs docs = reader.termDocs();
+                try
+                {
+                    do
+                    {
+                        Term term = terms.term();
+                        if ( term == null || !term.field().equals( valueKey ) )
+                        {
+                            break;
+                        }
+                        docs.seek( terms );
+                        while ( docs.next() )
+                        {
+                            Document document = new Document();
+                            factory.fillDocument( document,
+                                nodeIds.getNodeId( docs.doc() ), term.text() );
+                            writer.addDocument( document );
+                        }
+                    }
+                    while ( terms.next() );
+                }
+                finally
+                {
+                    terms.close();
+                    docs.close();
+                }
+                commit( writer, appliedTxId );
+            }
+            finally
+            {
+                writer.close();
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+}
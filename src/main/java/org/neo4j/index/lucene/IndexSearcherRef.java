@@ -20,29 +20,51 @@
 package org.neo4j.index.lucene;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.ReaderUtil;
 
+/**
+ * A reference counted {@link IndexSearcher}. The {@link LuceneDataSource}
+ * holds one reference for as long as this is the current searcher for its
+ * key and every reader holds one while it's using it. When a commit
+ * publishes a refreshed searcher the data source lets go of its reference
+ * to the old one, which is closed when the last reader is done with it.
+ */
 class IndexSearcherRef
 {
     private final String key;
     private final IndexSearcher searcher;
-    private final AtomicInteger refCount = new AtomicInteger( 0 );
-    private boolean isClosed;
+    private final IndexWriter writer;
+    private final IndexReader[] segments;
+    private final AtomicInteger refCount = new AtomicInteger( 1 );
+    private volatile TermBloomFilter[] termFilters;
+    
+    public IndexSearcherRef( String key, IndexSearcher searcher )
+    {
+        this( key, searcher, null );
+    }
     
     /**
-     * We need this because we only want to close the reader/searcher if
-     * it has been detached... i.e. the {@link LuceneDataSource} no longer
-     * has any reference to it, only an iterator out in the client has a ref.
-     * And when that client calls close() it should be closed.
+     * @param key the index key.
+     * @param searcher the searcher.
+     * @param writer the writer the near-real-time reader of
+     * {@code searcher} was opened from, or {@code null} if it was opened
+     * from the directory.
      */
-    private boolean detached;
-    
-    public IndexSearcherRef( String key, IndexSearcher searcher )
+    IndexSearcherRef( String key, IndexSearcher searcher, IndexWriter writer )
     {
         this.key = key;
         this.searcher = searcher;
+        this.writer = writer;
+        List<IndexReader> segments = new ArrayList<IndexReader>();
+        ReaderUtil.gatherSubReaders( segments, searcher.getIndexReader() );
+        this.segments = segments.toArray( new IndexReader[segments.size()] );
     }
     
     IndexSearcher getSearcher()
@@ -55,58 +77,89 @@ class IndexSearcherRef
         return this.key;
     }
     
-    void incRef()
+    /**
+     * @return the writer the reader of this searcher was opened from, or
+     * {@code null} if it was opened from the directory.
+     */
+    IndexWriter getWriter()
     {
-        this.refCount.incrementAndGet();
+        return this.writer;
     }
     
-    void dispose() throws IOException
+    /**
+     * @return the segments of the reader of this searcher.
+     */
+    IndexReader[] getSegments()
     {
-        if ( !this.isClosed )
-        {
-            this.searcher.close();
-            this.searcher.getIndexReader().close();
-            this.isClosed = true;
-        }
+        return this.segments;
     }
     
-    void detachOrClose() throws IOException
+    /**
+     * @return the term filters of the segments of this searcher, in the
+     * order of {@link #getSegments()}, or {@code null} if they haven't been
+     * built yet. A segment which doesn't get a filter has a {@code null}
+     * entry, see {@link LuceneDataSource#mightContain}.
+     */
+    TermBloomFilter[] getTermFilters()
     {
-        if ( this.refCount.get() == 0 )
-        {
-            dispose();
-        }
-        else
-        {
-            this.detached = true;
-        }
+        return this.termFilters;
     }
     
-    boolean close() throws IOException
+    void setTermFilters( TermBloomFilter[] termFilters )
     {
-        if ( this.isClosed || this.refCount.get() == 0 )
-        {
-            return true;
-        }
-        
-        boolean reallyClosed = false;
-        if ( this.refCount.decrementAndGet() <= 0 && this.detached )
-        {
-            dispose();
-            reallyClosed = true;
-        }
-        return reallyClosed;
+        this.termFilters = termFilters;
     }
     
-    boolean closeStrict()
+    /**
+     * Acquires a reference to this searcher, unless it has already been
+     * closed.
+     * 
+     * @return {@code true} if a reference was acquired, otherwise
+     * {@code false}, i.e. this searcher has been closed and the current
+     * searcher for the key should be used instead.
+     */
+    boolean tryIncRef()
     {
-        try
+        while ( true )
         {
-            return close();
+            int count = this.refCount.get();
+            if ( count <= 0 )
+            {
+                return false;
+            }
+            if ( this.refCount.compareAndSet( count, count + 1 ) )
+            {
+                return true;
+            }
         }
-        catch ( IOException e )
+    }
+    
+    /**
+     * Acquires another reference to this searcher. May only be called by
+     * someone already holding a reference.
+     */
+    void incRef()
+    {
+        this.refCount.incrementAndGet();
+    }
+    
+    /**
+     * Releases a reference to this searcher and closes it if it was the
+     * last one.
+     */
+    void release()
+    {
+        if ( this.refCount.decrementAndGet() == 0 )
         {
-            throw new RuntimeException( e );
+            try
+            {
+                this.searcher.close();
+                this.searcher.getIndexReader().close();
+            }
+            catch ( IOException e )
+            {
+                throw new RuntimeException( e );
+            }
         }
     }
 }
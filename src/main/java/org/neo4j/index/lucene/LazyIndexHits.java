@@ -26,20 +26,20 @@ import org.neo4j.index.IndexHits;
 class LazyIndexHits<T> implements IndexHits<T>
 {
     private final IndexHits<T> hits;
-    private final IndexSearcherRef searcher;
+    private final DocToIdIterator ids;
     
-    LazyIndexHits( IndexHits<T> hits, IndexSearcherRef searcher )
+    LazyIndexHits( IndexHits<T> hits, DocToIdIterator ids )
     {
         this.hits = hits;
-        this.searcher = searcher;
+        this.ids = ids;
     }
 
     public void close()
     {
         this.hits.close();
-        if ( this.searcher != null )
+        if ( this.ids != null )
         {
-            this.searcher.closeStrict();
+            this.ids.close();
         }
     }
 
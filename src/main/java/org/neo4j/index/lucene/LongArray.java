@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A growable array of longs, for collecting node ids without boxing them.
+ * Iterating over it boxes the ids one at a time as they're returned. Not
+ * thread safe.
+ */
+class LongArray implements Iterable<Long>
+{
+    private long[] values;
+    private int size;
+    
+    LongArray()
+    {
+        this( 10 );
+    }
+    
+    LongArray( int initialCapacity )
+    {
+        this.values = new long[initialCapacity];
+    }
+    
+    /**
+     * @param values the initial values, which are used as is and not
+     * copied.
+     */
+    LongArray( long[] values )
+    {
+        this.values = values;
+        this.size = values.length;
+    }
+    
+    void add( long value )
+    {
+        ensureCapacity( size + 1 );
+        values[size++] = value;
+    }
+    
+    void addAll( long[] values )
+    {
+        ensureCapacity( size + values.length );
+        System.arraycopy( values, 0, this.values, size, values.length );
+        size += values.length;
+    }
+    
+    private void ensureCapacity( int capacity )
+    {
+        if ( capacity > values.length )
+        {
+            values = Arrays.copyOf( values,
+                Math.max( capacity, values.length * 2 ) );
+        }
+    }
+    
+    long get( int index )
+    {
+        if ( index >= size )
+        {
+            throw new IndexOutOfBoundsException( index + " >= " + size );
+        }
+        return values[index];
+    }
+    
+    int size()
+    {
+        return size;
+    }
+    
+    long[] toArray()
+    {
+        return Arrays.copyOf( values, size );
+    }
+    
+    public Iterator<Long> iterator()
+    {
+        return iterator( values, size );
+    }
+    
+    /**
+     * @param values the values to iterate over.
+     * @param size the number of values, from the start of {@code values},
+     * to iterate over.
+     * @return an iterator over the first {@code size} values.
+     */
+    static Iterator<Long> iterator( final long[] values, final int size )
+    {
+        return new Iterator<Long>()
+        {
+            private int index;
+            
+            public boolean hasNext()
+            {
+                return index < size;
+            }
+            
+            public Long next()
+            {
+                if ( !hasNext() )
+                {
+                    throw new NoSuchElementException();
+                }
+                return values[index++];
+            }
+            
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import java.util.Arrays;
+
+/**
+ * A set of longs kept in an open addressing hash table with linear
+ * probing, so that node ids don't have to be boxed and no object is
+ * allocated per element. Not thread safe.
+ */
+class LongSet
+{
+    /**
+     * An empty set which can't be modified.
+     */
+    static final LongSet EMPTY = new LongSet( 0 )
+    {
+        @Override
+        boolean add( long value )
+        {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        boolean remove( long value )
+        {
+            throw new UnsupportedOperationException();
+        }
+    };
+    
+    // Marks a free slot, the value itself is kept outside the table
+    private static final long FREE = -1;
+    
+    private long[] table;
+    private int size;
+    private boolean containsFree;
+    
+    LongSet()
+    {
+        this( 8 );
+    }
+    
+    /**
+     * @param expectedSize the number of elements to make room for up front.
+     */
+    LongSet( int expectedSize )
+    {
+        this.table = newTable( capacityFor( expectedSize ) );
+    }
+    
+    private static int capacityFor( int size )
+    {
+        int capacity = 8;
+        while ( capacity * 3 / 4 < size )
+        {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+    
+    private static long[] newTable( int capacity )
+    {
+        long[] table = new long[capacity];
+        Arrays.fill( table, FREE );
+        return table;
+    }
+    
+    private int slot( long value )
+    {
+        long hash = value * 0x9E3779B97F4A7C15L;
+        return (int) ( hash >>> 32 ) & ( table.length - 1 );
+    }
+    
+    /**
+     * @param value the value to add.
+     * @return {@code true} if the value wasn't already in this set.
+     */
+    boolean add( long value )
+    {
+        if ( value == FREE )
+        {
+            boolean added = !containsFree;
+            containsFree = true;
+            return added;
+        }
+        int mask = table.length - 1;
+        for ( int i = slot( value );; i = ( i + 1 ) & mask )
+        {
+            long existing = table[i];
+            if ( existing == value )
+            {
+                return false;
+            }
+            if ( existing == FREE )
+            {
+                table[i] = value;
+                if ( ++size > table.length * 3 / 4 )
+                {
+                    rehash( table.length * 2 );
+                }
+                return true;
+            }
+        }
+    }
+    
+    void addAll( LongSet values )
+    {
+        if ( values.containsFree )
+        {
+            add( FREE );
+        }
+        for ( long value : values.table )
+        {
+            if ( value != FREE )
+            {
+                add( value );
+            }
+        }
+    }
+    
+    void addAll( long[] values )
+    {
+        for ( long value : values )
+        {
+            add( value );
+        }
+    }
+    
+    boolean contains( long value )
+    {
+        if ( value == FREE )
+        {
+            return containsFree;
+        }
+        return indexOf( value ) != -1;
+    }
+    
+    private int indexOf( long value )
+    {
+        int mask = table.length - 1;
+        for ( int i = slot( value );; i = ( i + 1 ) & mask )
+        {
+            long existing = table[i];
+            if ( existing == value )
+            {
+                return i;
+            }
+            if ( existing == FREE )
+            {
+                return -1;
+            }
+        }
+    }
+    
+    /**
+     * @param value the value to remove.
+     * @return {@code true} if the value was in this set.
+     */
+    boolean remove( long value )
+    {
+        if ( value == FREE )
+        {
+            boolean removed = containsFree;
+            containsFree = false;
+            return removed;
+        }
+        int hole = indexOf( value );
+        if ( hole == -1 )
+        {
+            return false;
+        }
+        
+        // Moves back the following values of the probe sequence which can
+        // fill the hole, so that lookups never stop at it too early
+        int mask = table.length - 1;
+        for ( int i = ( hole + 1 ) & mask; table[i] != FREE; i = ( i + 1 ) & mask )
+        {
+            int home = slot( table[i] );
+            if ( ( ( i - home ) & mask ) >= ( ( i - hole ) & mask ) )
+            {
+                table[hole] = table[i];
+                hole = i;
+            }
+        }
+        table[hole] = FREE;
+        size--;
+        return true;
+    }
+    
+    private void rehash( int capacity )
+    {
+        long[] oldTable = table;
+        table = newTable( capacity );
+        size = 0;
+        for ( long value : oldTable )
+        {
+            if ( value != FREE )
+            {
+                add( value );
+            }
+        }
+    }
+    
+    int size()
+    {
+        return containsFree ? size + 1 : size;
+    }
+    
+    boolean isEmpty()
+    {
+        return size() == 0;
+    }
+    
+    void clear()
+    {
+        Arrays.fill( table, FREE );
+        size = 0;
+        containsFree = false;
+    }
+    
+    /**
+     * @return the values of this set, in no particular order.
+     */
+    long[] toArray()
+    {
+        long[] result = new long[size()];
+        int i = 0;
+        if ( containsFree )
+        {
+            result[i++] = FREE;
+        }
+        for ( long value : table )
+        {
+            if ( value != FREE )
+            {
+                result[i++] = value;
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return Arrays.toString( toArray() );
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import java.io.Reader;
+
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.ReusableAnalyzerBase;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.WhitespaceTokenizer;
+
+/**
+ * Splits text on whitespace and lower cases the words. The tokenizer and
+ * filter are reused per thread for consecutive fields, instead of a new
+ * chain being allocated for every field, so it can be shared by threads
+ * adding documents in parallel.
+ */
+class LowerCaseWhitespaceAnalyzer extends ReusableAnalyzerBase
+{
+    @Override
+    protected TokenStreamComponents createComponents( String fieldName,
+        Reader reader )
+    {
+        Tokenizer tokenizer = new WhitespaceTokenizer(
+            LuceneDataSource.CURRENT_VERSION, reader );
+        return new TokenStreamComponents( tokenizer, new LowerCaseFilter(
+            LuceneDataSource.CURRENT_VERSION, tokenizer ) );
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.neo4j.index.lucene.LuceneCommand.AddCommand;
+import org.neo4j.index.lucene.LuceneCommand.RemoveCommand;
+import org.neo4j.kernel.impl.transaction.xaframework.LogBuffer;
+import org.neo4j.kernel.impl.transaction.xaframework.XaCommand;
+
+/**
+ * All the commands of a transaction for one key in one log record. This
+ * is what transactions log, the single {@link LuceneCommand}s are only
+ * read from older logs.
+ * <p>
+ * The record is the command type, the length of the payload and the
+ * payload. The payload starts with a format version followed by the key,
+ * which is written once, and the number of commands. Each command is a
+ * flags byte (type and which of node id and value are there), the node id
+ * as a zig-zag encoded variable length delta from the previous node id
+ * (commands are mostly for nodes created close to each other) and the
+ * value as UTF-8. Strings are prefixed with their variable length byte
+ * count.
+ */
+class LuceneBatchCommand extends XaCommand
+{
+    private static final byte VERSION = 1;
+    // Way more than the commands of any one transaction for one key, a
+    // longer length means that what's read isn't a length at all
+    private static final int MAX_PAYLOAD_SIZE = 256 * 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+    
+    private static final int TYPE_MASK = 0x3;
+    private static final int HAS_NODE_ID = 0x4;
+    private static final int HAS_VALUE = 0x8;
+    private static final int ADD = 1;
+    private static final int REMOVE = 2;
+    
+    private final String key;
+    private final List<LuceneCommand> commands;
+    
+    LuceneBatchCommand( String key, List<LuceneCommand> commands )
+    {
+        this.key = key;
+        this.commands = commands;
+    }
+    
+    String getKey()
+    {
+        return key;
+    }
+    
+    List<LuceneCommand> getCommands()
+    {
+        return commands;
+    }
+
+    @Override
+    public void execute()
+    {
+        // Applied by LuceneTransaction
+    }
+
+    @Override
+    public void writeToFile( LogBuffer buffer ) throws IOException
+    {
+        byte[] payload = encode();
+        buffer.put( LuceneCommand.BATCH_COMMAND );
+        buffer.putInt( payload.length );
+        buffer.put( payload );
+    }
+    
+    byte[] encode()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write( VERSION );
+        writeString( out, key );
+        writeVarLong( out, commands.size() );
+        long previousNodeId = 0;
+        for ( LuceneCommand command : commands )
+        {
+            Long nodeId = command.getNodeId();
+            String value = command.getValue();
+            int flags = command instanceof AddCommand ? ADD : REMOVE;
+            flags |= nodeId != null ? HAS_NODE_ID : 0;
+            flags |= value != null ? HAS_VALUE : 0;
+            out.write( flags );
+            if ( nodeId != null )
+            {
+                long delta = nodeId - previousNodeId;
+                writeVarLong( out, ( delta << 1 ) ^ ( delta >> 63 ) );
+                previousNodeId = nodeId;
+            }
+            if ( value != null )
+            {
+                writeString( out, value );
+            }
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * Reads a batch command, the command type has already been read.
+     * 
+     * @return the read command, or {@code null} if the log ended before
+     * the whole command could be read, i.e. if the length doesn't fit in
+     * what's left of the log or if the payload is cut short.
+     */
+    static LuceneBatchCommand read( ReadableByteChannel channel,
+        ByteBuffer buffer ) throws IOException
+    {
+        buffer.clear(); buffer.limit( 4 );
+        if ( channel.read( buffer ) != buffer.limit() )
+        {
+            return null;
+        }
+        buffer.flip();
+        int length = buffer.getInt();
+        if ( length <= 0 || length > MAX_PAYLOAD_SIZE )
+        {
+            return null;
+        }
+        if ( channel instanceof FileChannel )
+        {
+            FileChannel file = (FileChannel) channel;
+            if ( length > file.size() - file.position() )
+            {
+                return null;
+            }
+        }
+        byte[] payload = new byte[length];
+        int offset = 0;
+        while ( offset < payload.length )
+        {
+            buffer.clear();
+            buffer.limit( Math.min( buffer.capacity(),
+                payload.length - offset ) );
+            if ( channel.read( buffer ) != buffer.limit() )
+            {
+                return null;
+            }
+            buffer.flip();
+            int chunk = buffer.limit();
+            buffer.get( payload, offset, chunk );
+            offset += chunk;
+        }
+        try
+        {
+            return decode( ByteBuffer.wrap( payload ) );
+        }
+        catch ( BufferUnderflowException e )
+        {
+            // The counts and lengths in the payload don't add up
+            return null;
+        }
+    }
+    
+    static LuceneBatchCommand decode( ByteBuffer in )
+        throws IOException
+    {
+        byte version = in.get();
+        if ( version != VERSION )
+        {
+            throw new IOException( "Unknown lucene batch command version " +
+                version );
+        }
+        String key = readString( in );
+        int count = readLength( in );
+        List<LuceneCommand> commands = new ArrayList<LuceneCommand>( count );
+        long previousNodeId = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            int flags = in.get();
+            Long nodeId = null;
+            if ( ( flags & HAS_NODE_ID ) != 0 )
+            {
+                long zigZag = readVarLong( in );
+                previousNodeId += ( zigZag >>> 1 ) ^ -( zigZag & 1 );
+                nodeId = previousNodeId;
+            }
+            String value = ( flags & HAS_VALUE ) != 0 ? readString( in ) : null;
+            switch ( flags & TYPE_MASK )
+            {
+                case ADD: commands.add( new AddCommand( nodeId, key, value ) );
+                    break;
+                case REMOVE: commands.add( new RemoveCommand( nodeId, key, value ) );
+                    break;
+                default: throw new IOException( "Unknown lucene command flags " +
+                    flags );
+            }
+        }
+        return new LuceneBatchCommand( key, commands );
+    }
+    
+    private static void writeVarLong( ByteArrayOutputStream out, long value )
+    {
+        while ( ( value & ~0x7FL ) != 0 )
+        {
+            out.write( (int) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+        out.write( (int) value );
+    }
+    
+    private static long readVarLong( ByteBuffer in )
+    {
+        long value = 0;
+        for ( int shift = 0; ; shift += 7 )
+        {
+            byte b = in.get();
+            value |= (long) ( b & 0x7F ) << shift;
+            if ( ( b & 0x80 ) == 0 )
+            {
+                return value;
+            }
+        }
+    }
+    
+    private static void writeString( ByteArrayOutputStream out, String string )
+    {
+        byte[] bytes = string.getBytes( UTF_8 );
+        writeVarLong( out, bytes.length );
+        out.write( bytes, 0, bytes.length );
+    }
+    
+    /**
+     * Reads a count or byte length, which can't be more than the bytes left
+     * since every command and byte takes at least one byte.
+     */
+    private static int readLength( ByteBuffer in )
+    {
+        long length = readVarLong( in );
+        if ( length < 0 || length > in.remaining() )
+        {
+            throw new BufferUnderflowException();
+        }
+        return (int) length;
+    }
+    
+    private static String readString( ByteBuffer in )
+    {
+        byte[] bytes = new byte[readLength( in )];
+        in.get( bytes );
+        return new String( bytes, UTF_8 );
+    }
+}
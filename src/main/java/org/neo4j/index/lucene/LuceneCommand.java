@@ -34,6 +34,7 @@ abstract class LuceneCommand extends XaCommand
     
     private static final byte ADD_COMMAND = (byte) 1;
     private static final byte REMOVE_COMMAND = (byte) 2;
+    static final byte BATCH_COMMAND = (byte) 3;
     
     LuceneCommand( Long nodeId, String key, String value )
     {
@@ -215,6 +216,10 @@ abstract class LuceneCommand extends XaCommand
         }
         buffer.flip();
         byte commandType = buffer.get();
+        if ( commandType == BATCH_COMMAND )
+        {
+            return LuceneBatchCommand.read( channel, buffer );
+        }
         CommandData data = readCommandData( channel, buffer );
         if ( data == null )
         {
@@ -21,19 +21,31 @@ package org.neo4j.index.lucene;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.Reader;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.LowerCaseFilter;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.WhitespaceTokenizer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Index;
@@ -41,15 +53,14 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause.Occur;
-import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
+import org.neo4j.index.lucene.LuceneCommand.AddCommand;
+import org.neo4j.index.lucene.LuceneCommand.RemoveCommand;
 import org.neo4j.kernel.Config;
-import org.neo4j.kernel.impl.cache.LruCache;
 import org.neo4j.kernel.impl.transaction.xaframework.LogBackedXaDataSource;
 import org.neo4j.kernel.impl.transaction.xaframework.XaCommand;
 import org.neo4j.kernel.impl.transaction.xaframework.XaCommandFactory;
@@ -59,7 +70,6 @@ import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
 import org.neo4j.kernel.impl.transaction.xaframework.XaLogicalLog;
 import org.neo4j.kernel.impl.transaction.xaframework.XaTransaction;
 import org.neo4j.kernel.impl.transaction.xaframework.XaTransactionFactory;
-import org.neo4j.kernel.impl.util.ArrayMap;
 
 /**
  * An {@link XaDataSource} optimized for the {@link LuceneIndexService}.
@@ -67,36 +77,193 @@ import org.neo4j.kernel.impl.util.ArrayMap;
  */
 public class LuceneDataSource extends LogBackedXaDataSource
 {
+    private static final Logger log =
+        Logger.getLogger( LuceneDataSource.class.getName() );
+    
     public static final Version CURRENT_VERSION = Version.LUCENE_31;
     
     /**
      * Default {@link Analyzer} for fulltext parsing.
      */
     public static final Analyzer LOWER_CASE_WHITESPACE_ANALYZER =
-        new Analyzer()
-    {
-        @Override
-        public TokenStream tokenStream( String fieldName, Reader reader )
-        {
-            return new LowerCaseFilter( CURRENT_VERSION, new WhitespaceTokenizer( CURRENT_VERSION, reader ) );
-        }
-    };
+        new LowerCaseWhitespaceAnalyzer();
+
+    /**
+     * Config key for how long (in milliseconds) an {@link IndexWriter} may
+     * stay unused before it's closed. Writers are kept open between
+     * transactions so that a commit only has to add/delete documents, a
+     * background thread closes the ones which have been idle for longer.
+     */
+    public static final String WRITER_IDLE_TIMEOUT = "lucene_writer_idle_timeout";
+    
+    static final long DEFAULT_WRITER_IDLE_TIMEOUT = 5 * 60 * 1000;
+    
+    /**
+     * Config key for enabling group commit ("true"/"false", default false).
+     * With group commit the Lucene commit and the searcher refresh of the
+     * indexes touched by transactions are deferred to group boundaries,
+     * i.e. when {@link #GROUP_COMMIT_SIZE} transactions have been applied or
+     * when {@link #GROUP_COMMIT_WINDOW} milliseconds have passed, whichever
+     * comes first. So many small transactions share one Lucene commit and
+     * one searcher refresh and committed entries become visible to other
+     * transactions at the next group boundary.
+     * <p>
+     * The logical log only recovers transactions which weren't marked as
+     * done, so the commands of group committed transactions are also
+     * written to a journal (see {@link GroupCommitJournal}) until their
+     * group has been flushed. Whatever the journal holds when the data
+     * source starts is applied to the indexes which don't have it yet,
+     * before the logical log is recovered. A group is also flushed when the
+     * logical log is rotated and when the data source is closed.
+     */
+    public static final String GROUP_COMMIT = "lucene_group_commit";
+    
+    /**
+     * Config key for the max number of transactions in a group commit,
+     * see {@link #GROUP_COMMIT}.
+     */
+    public static final String GROUP_COMMIT_SIZE = "lucene_group_commit_size";
+    
+    /**
+     * Config key for the max time (in milliseconds) a group commit is kept
+     * open, see {@link #GROUP_COMMIT}.
+     */
+    public static final String GROUP_COMMIT_WINDOW = "lucene_group_commit_window";
+    
+    /**
+     * Config key for enabling near-real-time searchers ("true"/"false",
+     * default false). Searchers are then opened from the shared
+     * {@link IndexWriter} instead of from the index directory, so that
+     * entries applied to the writer become visible without the writer being
+     * committed first. This makes committed entries visible right away
+     * while the Lucene commit is deferred to the group boundary, so
+     * near-real-time searchers turn on {@link #GROUP_COMMIT} as well.
+     */
+    public static final String NEAR_REAL_TIME = "lucene_nrt";
+    
+    /**
+     * Config key for the max staleness (in milliseconds) of searchers, or
+     * {@code 0} (the default) to refresh the searchers of the keys modified
+     * by a transaction as part of its commit. With a max staleness the
+     * searchers of modified keys are instead refreshed by a background
+     * thread at that interval, so that the cost of reopening large indexes
+     * is kept off the commit path. Committed entries may then take up to
+     * that long to become visible to other transactions, while a
+     * transaction always sees its own uncommitted changes.
+     */
+    public static final String SEARCHER_REFRESH_INTERVAL =
+        "lucene_searcher_refresh_interval";
+    
+    /**
+     * Config key for the number of threads replaying recovered transactions
+     * (default 1). With more than one thread the keys are spread over the
+     * threads, which apply the commands of their keys in transaction order,
+     * so that the many independent indexes of a crashed instance are
+     * recovered in parallel.
+     */
+    public static final String RECOVERY_THREADS = "lucene_recovery_threads";
+    
+    /**
+     * Config key for the max bytes (estimated) of the cached results of all
+     * keys together, see {@link LuceneIndexService#enableCache(String, int)}.
+     * Defaults to {@link #DEFAULT_CACHE_MAX_BYTES}.
+     */
+    public static final String CACHE_MAX_BYTES = "lucene_cache_max_bytes";
+    
+    public static final long DEFAULT_CACHE_MAX_BYTES = 64 * 1024 * 1024;
+    
+    /**
+     * Config key for the Bloom filters of the exact values in each segment
+     * ("true"/"false", default true), which let a lookup of a value which
+     * isn't in the index return without searching it. The filters are
+     * built by a background thread when a searcher is opened or
+     * refreshed, lookups check the term dictionary of a segment until its
+     * filter is there. A filter takes about 10 bits per term, only segments
+     * with between {@link #TERM_FILTER_MIN_TERMS} and
+     * {@link #TERM_FILTER_MAX_TERMS} terms get one.
+     */
+    public static final String TERM_FILTERS = "lucene_term_filters";
+    
+    /**
+     * Config key for the number of terms a segment needs to get a term
+     * filter, see {@link #TERM_FILTERS}. The term dictionary of a smaller
+     * segment is quick enough to check.
+     */
+    public static final String TERM_FILTER_MIN_TERMS =
+        "lucene_term_filter_min_terms";
+    
+    /**
+     * Config key for the max number of terms of a segment with a term
+     * filter, see {@link #TERM_FILTERS}. Bounds the heap used by the filter
+     * of each segment.
+     */
+    public static final String TERM_FILTER_MAX_TERMS =
+        "lucene_term_filter_max_terms";
+    
+    static final long DEFAULT_TERM_FILTER_MIN_TERMS = 10000;
+    
+    static final long DEFAULT_TERM_FILTER_MAX_TERMS = 10 * 1000 * 1000;
+    
+    /**
+     * Number of lock stripes which the index keys are spread over, so that
+     * commits and reads on unrelated keys (most likely) don't contend.
+     * Must be a power of two.
+     */
+    static final int LOCK_STRIPES = 64;
+    
+    static final int DEFAULT_GROUP_COMMIT_SIZE = 100;
+    static final long DEFAULT_GROUP_COMMIT_WINDOW = 10;
 
-    private final Map<String, IndexWriter> recoveryWriters = new HashMap<String, IndexWriter>();
+    private final Map<String,IndexWriterContext> indexWriters =
+        new HashMap<String,IndexWriterContext>();
     
-    private final ArrayMap<String,IndexSearcherRef> indexSearchers = 
-        new ArrayMap<String,IndexSearcherRef>( 6, true, true );
+    private final ConcurrentMap<String,IndexSearcherRef> indexSearchers = 
+        new ConcurrentHashMap<String,IndexSearcherRef>();
+    private final ConcurrentMap<String,AtomicLong> cacheGenerations =
+        new ConcurrentHashMap<String,AtomicLong>();
 
     private final XaContainer xaContainer;
     private final String storeDir;
-    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); 
+    private final ReentrantReadWriteLock[] lockStripes =
+        new ReentrantReadWriteLock[LOCK_STRIPES];
     private final Analyzer fieldAnalyzer;
     private final LuceneIndexStore store;
     private LuceneIndexService indexService;
+    private final long writerIdleTimeout;
+    private final boolean groupCommit;
+    private final boolean nearRealTime;
+    private final int groupCommitSize;
+    private final Set<String> groupCommitKeys = new HashSet<String>();
+    private int groupCommitTransactions;
+    private ScheduledExecutorService groupCommitFlusher;
+    private final GroupCommitJournal groupCommitJournal;
+    private final Object groupFlushLock = new Object();
+    private final ConcurrentMap<String,Long> staleSearchers =
+        new ConcurrentHashMap<String,Long>();
+    private final AtomicLong staleSearcherMarks = new AtomicLong();
+    private ScheduledExecutorService searcherRefresher;
+    private ScheduledExecutorService idleWriterCloser;
+    private final int recoveryThreads;
+    private ExecutorService[] recoveryWorkers;
+    private volatile RuntimeException recoveryFailure;
+    private final ConcurrentMap<String,Long> recoveryWatermarks =
+        new ConcurrentHashMap<String,Long>();
+    private final Set<String> recoveredKeys = new HashSet<String>();
+    private ExecutorService backgroundOptimizer;
+    private final Set<String> keysToOptimize = new LinkedHashSet<String>();
+    private int optimizeMaxSegments;
+    private int optimizedKeys;
+    private int totalKeysToOptimize;
+    private OptimizeProgressListener optimizeListener;
     
-    private Map<String,LruCache<String,Collection<Long>>> caching = 
-        Collections.synchronizedMap( 
-            new HashMap<String,LruCache<String,Collection<Long>>>() );
+    private final ResultCache resultCache;
+    // Keyed by segment core, which the reopened readers of a segment share.
+    // Only used by the term filter builder thread.
+    private final Map<Object,TermBloomFilter> termFilters =
+        new WeakHashMap<Object,TermBloomFilter>();
+    private final long termFilterMinTerms;
+    private final long termFilterMaxTerms;
+    private ExecutorService termFilterBuilder;
 
     /**
      * Constructs this data source.
@@ -109,8 +276,40 @@ public class LuceneDataSource extends LogBackedXaDataSource
         throws InstantiationException
     {
         super( params );
+        for ( int i = 0; i < lockStripes.length; i++ )
+        {
+            lockStripes[i] = new ReentrantReadWriteLock();
+        }
         this.storeDir = (String) params.get( "dir" );
         this.fieldAnalyzer = instantiateAnalyzer();
+        this.writerIdleTimeout = getLongParam( params, WRITER_IDLE_TIMEOUT,
+            DEFAULT_WRITER_IDLE_TIMEOUT );
+        this.nearRealTime = getBooleanParam( params, NEAR_REAL_TIME, false );
+        // There's no point in near-real-time searchers if every transaction
+        // commits its writers anyway
+        this.groupCommit = getBooleanParam( params, GROUP_COMMIT, false ) ||
+            nearRealTime;
+        this.groupCommitSize = (int) getLongParam( params, GROUP_COMMIT_SIZE,
+            DEFAULT_GROUP_COMMIT_SIZE );
+        this.recoveryThreads = (int) getLongParam( params, RECOVERY_THREADS,
+            1 );
+        this.resultCache = new ResultCache( getLongParam( params,
+            CACHE_MAX_BYTES, DEFAULT_CACHE_MAX_BYTES ) );
+        this.termFilterMinTerms = getLongParam( params, TERM_FILTER_MIN_TERMS,
+            DEFAULT_TERM_FILTER_MIN_TERMS );
+        this.termFilterMaxTerms = getLongParam( params, TERM_FILTER_MAX_TERMS,
+            DEFAULT_TERM_FILTER_MAX_TERMS );
+        if ( getBooleanParam( params, TERM_FILTERS, true ) )
+        {
+            startTermFilterBuilder();
+        }
+        startIdleWriterCloser();
+        long refreshInterval = getLongParam( params,
+            SEARCHER_REFRESH_INTERVAL, 0 );
+        if ( refreshInterval > 0 )
+        {
+            startSearcherRefresher( refreshInterval );
+        }
         String dir = storeDir;
         File file = new File( dir );
         if ( !file.exists() )
@@ -125,6 +324,16 @@ public class LuceneDataSource extends LogBackedXaDataSource
                     "Unable to create directory " + dir, e );
             }
         }
+        clearStaleLocks();
+        migrateIndexes();
+        // Replayed even if group commit has been turned off since
+        this.groupCommitJournal = new GroupCommitJournal( file );
+        replayGroupCommitJournal();
+        if ( groupCommit )
+        {
+            startGroupCommitFlusher( getLongParam( params,
+                GROUP_COMMIT_WINDOW, DEFAULT_GROUP_COMMIT_WINDOW ) );
+        }
         this.store = new LuceneIndexStore( storeDir + "/lucene-store.db" );
         XaCommandFactory cf = new LuceneCommandFactory();
         XaTransactionFactory tf = new LuceneTransactionFactory( store );
@@ -142,6 +351,134 @@ public class LuceneDataSource extends LogBackedXaDataSource
         configureLog( params );
     }
     
+    static long getLongParam( Map<?,?> params, String key, long defaultValue )
+    {
+        Object value = params.get( key );
+        if ( value == null )
+        {
+            return defaultValue;
+        }
+        if ( value instanceof Number )
+        {
+            return ( (Number) value ).longValue();
+        }
+        return Long.parseLong( value.toString().trim() );
+    }
+    
+    static boolean getBooleanParam( Map<?,?> params, String key,
+        boolean defaultValue )
+    {
+        Object value = params.get( key );
+        if ( value == null )
+        {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean( value.toString().trim() );
+    }
+    
+    private void startGroupCommitFlusher( long window )
+    {
+        groupCommitFlusher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable,
+                        "Lucene group commit flusher" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        groupCommitFlusher.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    flushGroupCommit();
+                }
+                catch ( RuntimeException e )
+                {
+                    // Keep on flushing, the next group might go better. The
+                    // journal is kept until a flush of the group succeeds.
+                    log.log( Level.WARNING, "Unable to flush group commit",
+                        e );
+                }
+            }
+        }, window, window, TimeUnit.MILLISECONDS );
+    }
+    
+    private void startIdleWriterCloser()
+    {
+        // Checks twice per timeout, so a writer is closed at most one and a
+        // half timeout after it was last used
+        long interval = Math.max( 1, writerIdleTimeout / 2 );
+        idleWriterCloser = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable,
+                        "Lucene idle writer closer" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        idleWriterCloser.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    closeIdleWriters();
+                }
+                catch ( RuntimeException e )
+                {
+                    // Tried again at the next check
+                    log.log( Level.WARNING, "Unable to close idle writers", e );
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS );
+    }
+    
+    private void startTermFilterBuilder()
+    {
+        // One thread, so that no filter is built twice
+        termFilterBuilder = Executors.newSingleThreadExecutor(
+            new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable,
+                        "Lucene term filter builder" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+    }
+    
+    private void startSearcherRefresher( long interval )
+    {
+        searcherRefresher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable,
+                        "Lucene searcher refresher" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        searcherRefresher.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                refreshStaleSearchers();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS );
+    }
+    
     protected XaLogicalLog getLogicalLog()
     {
         return xaContainer.getLogicalLog();
@@ -198,18 +535,43 @@ public class LuceneDataSource extends LogBackedXaDataSource
     @Override
     public void close()
     {
-        for ( IndexSearcherRef searcher : indexSearchers.values() )
+        stopGroupCommitFlusher();
+        try
+        {
+            flushGroupCommit();
+        }
+        catch ( RuntimeException e )
+        {
+            // The writers are committed when closed below, whatever is left
+            // in the journal is skipped when replayed
+            log.log( Level.WARNING, "Unable to flush group commit", e );
+        }
+        stopExecutor( searcherRefresher );
+        stopExecutor( idleWriterCloser );
+        stopExecutor( termFilterBuilder );
+        stopBackgroundOptimize();
+        for ( String key : indexSearchers.keySet() )
         {
             try
             {
-                searcher.dispose();
+                closeIndexSearcher( key );
             }
-            catch ( IOException e )
+            catch ( RuntimeException e )
             {
-                e.printStackTrace();
+                log.log( Level.WARNING, "Unable to close searcher for " +
+                    key, e );
             }
         }
-        indexSearchers.clear();
+        closeWriters();
+        try
+        {
+            groupCommitJournal.close();
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Unable to close lucene group " +
+                "commit journal", e );
+        }
         xaContainer.close();
         store.close();
     }
@@ -259,7 +621,7 @@ public class LuceneDataSource extends LogBackedXaDataSource
         @Override
         public void flushAll()
         {
-            // Not much we can do...
+            flushGroupCommit();
         }
 
         @Override
@@ -283,32 +645,248 @@ public class LuceneDataSource extends LogBackedXaDataSource
         @Override
         public void recoveryComplete()
         {
-            for ( Map.Entry<String, IndexWriter> entry : recoveryWriters.entrySet() )
+            LuceneDataSource.this.recoveryComplete();
+        }
+    }
+    
+    boolean isParallelRecovery()
+    {
+        return recoveryThreads > 1;
+    }
+    
+    /**
+     * Hands the commands of a recovered transaction for {@code key} to the
+     * recovery worker of {@code key}. All the commands of a key go to the
+     * same worker, so they're applied in the order they were submitted.
+     * 
+     * @param key the index key.
+     * @param apply applies the commands.
+     */
+    synchronized void submitRecoveredCommands( String key, final Runnable apply )
+    {
+        if ( recoveryWorkers == null )
+        {
+            recoveryWorkers = new ExecutorService[recoveryThreads];
+            for ( int i = 0; i < recoveryWorkers.length; i++ )
+            {
+                final String name = "Lucene recovery worker " + i;
+                recoveryWorkers[i] = Executors.newSingleThreadExecutor(
+                    new ThreadFactory()
+                    {
+                        public Thread newThread( Runnable runnable )
+                        {
+                            Thread thread = new Thread( runnable, name );
+                            thread.setDaemon( true );
+                            return thread;
+                        }
+                    } );
+            }
+        }
+        recoveryWorkers[lockStripe( key ) % recoveryWorkers.length].execute(
+            new Runnable()
+            {
+                public void run()
+                {
+                    if ( recoveryFailure != null )
+                    {
+                        return;
+                    }
+                    try
+                    {
+                        apply.run();
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        recoveryFailure = e;
+                    }
+                }
+            } );
+    }
+    
+    /**
+     * Returns whether or not a recovered transaction can skip applying its
+     * commands for {@code key} because the index on disk already reflects
+     * it, i.e. if {@code txId} is at or below the applied transaction id
+     * recorded in the last commit of the index. The recorded id is read
+     * the first time a key is asked for, before any recovered command for
+     * it has been applied.
+     * 
+     * @param key the index key.
+     * @param txId the id of the recovered transaction.
+     * @return whether or not the transaction is already applied to the
+     * index for {@code key}.
+     */
+    boolean isAppliedOnDisk( String key, long txId )
+    {
+        if ( txId == -1 )
+        {
+            return false;
+        }
+        Long watermark = recoveryWatermarks.get( key );
+        if ( watermark == null )
+        {
+            try
+            {
+                Directory dir = getDirectory( key );
+                try
+                {
+                    watermark = IndexFormat.getAppliedTxId( dir );
+                }
+                finally
+                {
+                    dir.close();
+                }
+            }
+            catch ( IOException e )
+            {
+                throw new RuntimeException( e );
+            }
+            recoveryWatermarks.put( key, watermark );
+        }
+        return txId <= watermark;
+    }
+    
+    /**
+     * Called by a recovered transaction instead of committing the writers
+     * of {@code keys} itself, they're committed when recovery is complete.
+     * 
+     * @param keys the index keys modified by the transaction.
+     */
+    void addRecoveredKeys( Collection<String> keys )
+    {
+        synchronized ( recoveredKeys )
+        {
+            recoveredKeys.addAll( keys );
+        }
+    }
+    
+    /**
+     * Waits for the recovery workers to apply all the recovered commands
+     * and commits the writers of the recovered keys.
+     */
+    private void recoveryComplete()
+    {
+        recoveryWatermarks.clear();
+        ExecutorService[] workers;
+        synchronized ( this )
+        {
+            workers = recoveryWorkers;
+            recoveryWorkers = null;
+        }
+        if ( workers != null )
+        {
+            for ( ExecutorService worker : workers )
+            {
+                worker.shutdown();
+            }
+            for ( ExecutorService worker : workers )
+            {
+                try
+                {
+                    worker.awaitTermination( Long.MAX_VALUE,
+                        TimeUnit.MILLISECONDS );
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.interrupted();
+                    throw new RuntimeException(
+                        "Interrupted while waiting for recovery", e );
+                }
+            }
+        }
+        if ( recoveryFailure != null )
+        {
+            throw new RuntimeException( "Unable to recover lucene index",
+                recoveryFailure );
+        }
+        Collection<String> keys;
+        synchronized ( recoveredKeys )
+        {
+            keys = new ArrayList<String>( recoveredKeys );
+            recoveredKeys.clear();
+        }
+        for ( String key : keys )
+        {
+            getWriteLock( key );
+            try
+            {
+                commitWriter( key );
+                searcherChanged( key );
+            }
+            finally
             {
-                removeWriter( entry.getKey(), entry.getValue() );
+                releaseWriteLock( key );
             }
-            recoveryWriters.clear();
         }
     }
     
-    void getReadLock()
+    private ReentrantReadWriteLock getLock( String key )
+    {
+        return lockStripes[lockStripe( key )];
+    }
+    
+    private static int lockStripe( String key )
+    {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return hash & ( LOCK_STRIPES - 1 );
+    }
+    
+    /**
+     * Returns the lock stripes for {@code keys} in ascending order, which is
+     * the order they must be locked in to avoid deadlocks.
+     */
+    private static int[] lockStripes( Collection<String> keys )
+    {
+        Set<Integer> stripes = new TreeSet<Integer>();
+        for ( String key : keys )
+        {
+            stripes.add( lockStripe( key ) );
+        }
+        int[] result = new int[stripes.size()];
+        int i = 0;
+        for ( Integer stripe : stripes )
+        {
+            result[i++] = stripe;
+        }
+        return result;
+    }
+    
+    void getReadLock( String key )
     {
-        lock.readLock().lock();
+        getLock( key ).readLock().lock();
     }
     
-    void releaseReadLock()
+    void releaseReadLock( String key )
     {
-        lock.readLock().unlock();
+        getLock( key ).readLock().unlock();
     }
     
-    void getWriteLock()
+    void getWriteLock( String key )
     {
-        lock.writeLock().lock();
+        getLock( key ).writeLock().lock();
+    }
+    
+    void releaseWriteLock( String key )
+    {
+        getLock( key ).writeLock().unlock();
+    }
+    
+    void getWriteLock( Collection<String> keys )
+    {
+        for ( int stripe : lockStripes( keys ) )
+        {
+            lockStripes[stripe].writeLock().lock();
+        }
     }
     
-    void releaseWriteLock()
+    void releaseWriteLock( Collection<String> keys )
     {
-        lock.writeLock().unlock();
+        int[] stripes = lockStripes( keys );
+        for ( int i = stripes.length - 1; i >= 0; i-- )
+        {
+            lockStripes[stripes[i]].writeLock().unlock();
+        }
     }
     
     /**
@@ -328,12 +906,35 @@ public class LuceneDataSource extends LogBackedXaDataSource
         try
         {
             IndexReader reader = searcher.getSearcher().getIndexReader();
-            IndexReader reopened = reader.reopen();
+            IndexWriter writer = nearRealTime ?
+                getOpenIndexWriter( searcher.getKey() ) : null;
+            IndexReader reopened;
+            if ( writer == searcher.getWriter() )
+            {
+                // From the same writer, or from the directory with no
+                // writer around, only the changed segments are reopened
+                reopened = reader.reopen();
+            }
+            else if ( writer != null )
+            {
+                // Opened from the directory before there was a writer, or
+                // from one which has been closed since. It has to go
+                // through the writer from now on to see what isn't
+                // committed yet.
+                reopened = IndexReader.open( writer, true );
+            }
+            else
+            {
+                // The writer it was opened from has been closed, which
+                // committed everything it had
+                reopened = IndexReader.open( getDirectory(
+                    searcher.getKey() ), true );
+            }
             if ( reopened != reader )
             {
                 IndexSearcher newSearcher = new IndexSearcher( reopened );
-                searcher.detachOrClose();
-                return new IndexSearcherRef( searcher.getKey(), newSearcher );
+                return new IndexSearcherRef( searcher.getKey(), newSearcher,
+                    writer );
             }
             return null;
         }
@@ -348,41 +949,167 @@ public class LuceneDataSource extends LogBackedXaDataSource
         return FSDirectory.open( getIndexDir( key ) );
     }
     
-    private File getIndexDir( String key )
-    {
-        return new File( storeDir, key );
-    }
-    
-    IndexSearcherRef getIndexSearcher( String key )
+    /**
+     * Removes the write locks left behind by an instance which wasn't shut
+     * down properly. The store directory is locked by the kernel, so no
+     * other instance can be writing to these indexes and a lock found here
+     * is stale. Must be called before recovery opens any writer.
+     */
+    private void clearStaleLocks()
     {
-        try
+        File[] dirs = new File( storeDir ).listFiles();
+        for ( File dir : dirs != null ? dirs : new File[0] )
         {
-            IndexSearcherRef searcher = indexSearchers.get( key );
-            if ( searcher == null )
+            if ( !dir.isDirectory() )
             {
-                Directory dir = getDirectory( key );
+                continue;
+            }
+            try
+            {
+                Directory directory = getDirectory( dir.getName() );
                 try
                 {
-                    String[] files = dir.listAll();
-                    if ( files == null || files.length == 0 )
+                    if ( IndexWriter.isLocked( directory ) )
                     {
-                        return null;
+                        IndexWriter.unlock( directory );
                     }
                 }
-                catch ( IOException e )
+                finally
                 {
-                    return null;
+                    directory.close();
                 }
-                IndexReader indexReader = IndexReader.open( dir, false );
-                IndexSearcher indexSearcher = new IndexSearcher( indexReader );
-                searcher = new IndexSearcherRef( key, indexSearcher );
-                indexSearchers.put( key, searcher );
             }
-            return searcher;
-        }
-        catch ( IOException e )
-        {
-            throw new RuntimeException( e );
+            catch ( IOException e )
+            {
+                throw new RuntimeException( "Unable to clear the lock of " +
+                    dir, e );
+            }
+        }
+    }
+    
+    /**
+     * Rebuilds the indexes which are in an older format, see
+     * {@link IndexFormat#migrateIfNeeded(Directory, IndexWriterConfig,
+     * String, IndexFormat.DocumentFactory)}. Done once at startup, before
+     * any transaction is applied, so that opening a writer never has to.
+     */
+    private void migrateIndexes()
+    {
+        File[] dirs = new File( storeDir ).listFiles();
+        for ( File dir : dirs != null ? dirs : new File[0] )
+        {
+            if ( !dir.isDirectory() )
+            {
+                continue;
+            }
+            try
+            {
+                Directory directory = getDirectory( dir.getName() );
+                try
+                {
+                    migrateIfNeeded( dir.getName(), directory );
+                }
+                finally
+                {
+                    directory.close();
+                }
+            }
+            catch ( IOException e )
+            {
+                throw new RuntimeException( "Unable to migrate the index in " +
+                    dir, e );
+            }
+        }
+    }
+    
+    File getIndexDir( String key )
+    {
+        return new File( storeDir, key );
+    }
+    
+    /**
+     * Returns the current searcher for {@code key} with a reference acquired
+     * for the caller, who must {@link IndexSearcherRef#release() release} it
+     * when done. This doesn't take any lock unless the searcher has to be
+     * opened. Commits publish refreshed searchers atomically and the
+     * searchers they replace are closed when their last reader is done.
+     * 
+     * @param key the index key.
+     * @return the current searcher for {@code key} or {@code null} if there's
+     * no index for {@code key}.
+     */
+    IndexSearcherRef acquireIndexSearcher( String key )
+    {
+        while ( true )
+        {
+            IndexSearcherRef searcher = indexSearchers.get( key );
+            if ( searcher == null )
+            {
+                searcher = openIndexSearcher( key );
+                if ( searcher == null )
+                {
+                    return null;
+                }
+            }
+            if ( searcher.tryIncRef() )
+            {
+                return searcher;
+            }
+            // It was replaced and closed in between, go for its replacement
+        }
+    }
+    
+    private IndexSearcherRef openIndexSearcher( String key )
+    {
+        // The read lock makes sure that no commit publishes a refreshed
+        // searcher while we're opening one, which would then be stale
+        getReadLock( key );
+        try
+        {
+            IndexSearcherRef searcher = indexSearchers.get( key );
+            if ( searcher != null )
+            {
+                return searcher;
+            }
+            Directory dir = getDirectory( key );
+            try
+            {
+                String[] files = dir.listAll();
+                if ( files == null || files.length == 0 )
+                {
+                    return null;
+                }
+            }
+            catch ( IOException e )
+            {
+                return null;
+            }
+            // Read-only since all writes goes through the shared writer.
+            // Reads never open a writer, without one everything is
+            // committed and the directory is as recent as it gets.
+            IndexWriter writer = nearRealTime ? getOpenIndexWriter( key ) : null;
+            IndexReader indexReader = writer != null ?
+                IndexReader.open( writer, true ) :
+                IndexReader.open( dir, true );
+            IndexSearcher indexSearcher = new IndexSearcher( indexReader );
+            searcher = new IndexSearcherRef( key, indexSearcher, writer );
+            IndexSearcherRef existing =
+                indexSearchers.putIfAbsent( key, searcher );
+            if ( existing != null )
+            {
+                searcher.release();
+                return existing;
+            }
+            buildTermFilters( searcher );
+            return searcher;
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( e );
+        }
+        finally
+        {
+            releaseReadLock( key );
         }
     }
 
@@ -391,106 +1118,1040 @@ public class LuceneDataSource extends LogBackedXaDataSource
     {
         return new LuceneTransaction( identifier, logicalLog, this );
     }
-
-    void invalidateIndexSearcher( String key )
+
+    /**
+     * Refreshes the searcher for {@code key}, if it's open, and publishes
+     * the refreshed one. Called with the write lock for {@code key} held.
+     * 
+     * @param key the index key.
+     */
+    void invalidateIndexSearcher( String key )
+    {
+        IndexSearcherRef searcher = indexSearchers.get( key );
+        if ( searcher != null )
+        {
+            IndexSearcherRef refreshedSearcher = refreshSearcher( searcher );
+            if ( refreshedSearcher != null )
+            {
+                if ( indexSearchers.replace( key, searcher, refreshedSearcher ) )
+                {
+                    bumpCacheGeneration( key );
+                    searcher.release();
+                    buildTermFilters( refreshedSearcher );
+                }
+                else
+                {
+                    refreshedSearcher.release();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Called when the index for {@code key} has been modified, with the
+     * write lock for {@code key} held. Refreshes the searcher right away
+     * or, if there's a {@link #SEARCHER_REFRESH_INTERVAL}, marks it as
+     * stale for the background refresher.
+     * 
+     * @param key the index key.
+     */
+    void searcherChanged( String key )
+    {
+        if ( searcherRefresher == null )
+        {
+            invalidateIndexSearcher( key );
+        }
+        else
+        {
+            staleSearchers.put( key, staleSearcherMarks.incrementAndGet() );
+        }
+    }
+    
+    private void refreshStaleSearchers()
+    {
+        for ( Map.Entry<String,Long> entry :
+            new ArrayList<Map.Entry<String,Long>>( staleSearchers.entrySet() ) )
+        {
+            String key = entry.getKey();
+            try
+            {
+                refreshStaleSearcher( key );
+            }
+            catch ( RuntimeException e )
+            {
+                // The key stays marked, so it's tried again next time and
+                // its results aren't cached in the meantime
+                log.log( Level.WARNING, "Unable to refresh searcher for " +
+                    key, e );
+                continue;
+            }
+            // Only unmark it if it hasn't been modified since we got the
+            // mark, the key must stay marked until the refreshed searcher
+            // has been published, see isSearcherBehind
+            staleSearchers.remove( key, entry.getValue() );
+        }
+    }
+    
+    private void refreshStaleSearcher( String key )
+    {
+        // No lock here, we don't want to hold up commits while reopening.
+        // Publishing is atomic and a commit coming in after we reopened
+        // marks the key as stale again.
+        IndexSearcherRef searcher = indexSearchers.get( key );
+        if ( searcher == null || !searcher.tryIncRef() )
+        {
+            return;
+        }
+        try
+        {
+            IndexSearcherRef refreshedSearcher = refreshSearcher( searcher );
+            if ( refreshedSearcher != null )
+            {
+                if ( indexSearchers.replace( key, searcher, refreshedSearcher ) )
+                {
+                    bumpCacheGeneration( key );
+                    searcher.release();
+                    buildTermFilters( refreshedSearcher );
+                }
+                else
+                {
+                    refreshedSearcher.release();
+                }
+            }
+        }
+        finally
+        {
+            searcher.release();
+        }
+    }
+    
+    void closeIndexSearcher( String key )
+    {
+        IndexSearcherRef searcher = indexSearchers.remove( key );
+        if ( searcher != null )
+        {
+            bumpCacheGeneration( key );
+            searcher.release();
+        }
+    }
+    
+    /**
+     * Returns the shared {@link IndexWriter} for {@code key}, opening it if
+     * it isn't already open. The writer stays open between transactions
+     * and is closed when idle (see {@link #closeIdleWriters()}), when the
+     * index is deleted or when this data source is closed.
+     * 
+     * @param key the index key.
+     * @return the shared writer for {@code key}.
+     */
+    synchronized IndexWriter getIndexWriter( String key )
+    {
+        IndexWriterContext context = indexWriters.get( key );
+        if ( context == null )
+        {
+            try
+            {
+                Directory dir = getDirectory( key );
+                IndexWriterConfig config = new IndexWriterConfig( CURRENT_VERSION, getAnalyzer() );
+                long appliedTxId = IndexFormat.getAppliedTxId( dir );
+                IndexWriter writer = new IndexWriter( dir, config );
+                
+                // TODO We should tamper with this value and see how it affects the
+                // general performance. Lucene docs says rather <10 for mixed
+                // reads/writes 
+//                writer.setMergeFactor( 8 );
+                
+                context = new IndexWriterContext( writer, appliedTxId );
+                indexWriters.put( key, context );
+            }
+            catch ( IOException e )
+            {
+                throw new RuntimeException( e );
+            }
+        }
+        context.lastUsed = System.currentTimeMillis();
+        return context.writer;
+    }
+    
+    /**
+     * @param key the index key.
+     * @return the shared writer for {@code key} if it's open, otherwise
+     * {@code null}. Unlike {@link #getIndexWriter(String)} this doesn't
+     * open a writer, nor count as a use of it.
+     */
+    synchronized IndexWriter getOpenIndexWriter( String key )
+    {
+        IndexWriterContext context = indexWriters.get( key );
+        return context != null ? context.writer : null;
+    }
+    
+    private void migrateIfNeeded( final String key, Directory dir )
+        throws IOException
+    {
+        IndexFormat.migrateIfNeeded( dir,
+            new IndexWriterConfig( CURRENT_VERSION, getAnalyzer() ),
+            getDeleteDocumentsKey(), new IndexFormat.DocumentFactory()
+            {
+                public void fillDocument( Document document, long nodeId,
+                    Object value )
+                {
+                    LuceneDataSource.this.fillDocument( document, nodeId,
+                        key, value );
+                }
+            } );
+    }
+    
+    /**
+     * Records that the transaction {@code txId} has been applied to the
+     * writer for {@code key}, so that the next commit of the writer
+     * records it in the index. Must be called while holding the write lock
+     * for {@code key}.
+     * 
+     * @param key the index key.
+     * @param txId the id of the applied transaction.
+     */
+    synchronized void setAppliedTxId( String key, long txId )
+    {
+        IndexWriterContext context = indexWriters.get( key );
+        if ( context != null && txId > context.appliedTxId )
+        {
+            context.appliedTxId = txId;
+        }
+    }
+    
+    /**
+     * Commits the writer for {@code key}, if it's open. Must be called while
+     * holding the write lock for {@code key}.
+     * 
+     * @param key the index key.
+     */
+    void commitWriter( String key )
+    {
+        IndexWriterContext context;
+        synchronized ( this )
+        {
+            context = indexWriters.get( key );
+        }
+        if ( context != null )
+        {
+            commitWriter( context );
+        }
+    }
+    
+    private void commitWriter( IndexWriterContext context )
+    {
+        try
+        {
+            IndexFormat.commit( context.writer, context.appliedTxId );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Unable to commit lucene writer "
+                + context.writer, e );
+        }
+    }
+    
+    synchronized void closeWriter( String key )
+    {
+        IndexWriterContext context = indexWriters.remove( key );
+        if ( context != null )
+        {
+            closeWriterAndSearcher( key, context );
+        }
+    }
+    
+    private void closeWriterAndSearcher( String key,
+        IndexWriterContext context )
+    {
+        closeWriter( context );
+        if ( nearRealTime )
+        {
+            // A near-real-time searcher can't be refreshed once its writer
+            // is closed, the next reader opens a new writer and searcher
+            closeIndexSearcher( key );
+        }
+    }
+    
+    /**
+     * Closes writers which haven't been used for longer than the
+     * {@link #WRITER_IDLE_TIMEOUT}, so that rarely used indexes don't
+     * hold on to file handles and buffers. Called periodically by the idle
+     * writer closer. Must be called without holding any write lock.
+     */
+    void closeIdleWriters()
+    {
+        for ( String key : getIdleWriterKeys() )
+        {
+            getWriteLock( key );
+            try
+            {
+                closeWriterIfIdle( key );
+            }
+            finally
+            {
+                releaseWriteLock( key );
+            }
+        }
+    }
+    
+    /**
+     * @param key the index key.
+     * @return whether or not there's an open writer for {@code key}.
+     */
+    synchronized boolean isWriterOpen( String key )
+    {
+        return indexWriters.containsKey( key );
+    }
+    
+    private synchronized Collection<String> getIdleWriterKeys()
+    {
+        Collection<String> keys = new ArrayList<String>();
+        for ( Map.Entry<String,IndexWriterContext> entry :
+            indexWriters.entrySet() )
+        {
+            if ( isIdle( entry.getValue() ) )
+            {
+                keys.add( entry.getKey() );
+            }
+        }
+        return keys;
+    }
+    
+    private boolean isIdle( IndexWriterContext context )
+    {
+        return !context.optimizing &&
+            System.currentTimeMillis() - context.lastUsed > writerIdleTimeout;
+    }
+    
+    private synchronized void closeWriterIfIdle( String key )
+    {
+        IndexWriterContext context = indexWriters.get( key );
+        if ( context != null && isIdle( context ) )
+        {
+            indexWriters.remove( key );
+            closeWriterAndSearcher( key, context );
+        }
+    }
+    
+    boolean isGroupCommit()
+    {
+        return groupCommit;
+    }
+    
+    boolean isNearRealTime()
+    {
+        return nearRealTime;
+    }
+    
+    /**
+     * Called by a committing transaction when group commit is enabled
+     * instead of committing the writers and refreshing the searchers of
+     * {@code keys} itself. Must be called while holding the write locks
+     * for {@code keys}, so that a flush of a key always covers everything
+     * applied to its writer.
+     * 
+     * @param keys the index keys modified by the transaction.
+     * @return {@code true} if the group is full and should be flushed with
+     * {@link #flushGroupCommit()} as soon as the write locks are released.
+     */
+    boolean addToGroupCommit( Collection<String> keys )
+    {
+        synchronized ( groupCommitKeys )
+        {
+            groupCommitKeys.addAll( keys );
+            return ++groupCommitTransactions >= groupCommitSize;
+        }
+    }
+    
+    /**
+     * Writes the commands of a group committed transaction to the journal,
+     * so that they can be replayed if the JVM dies before the group is
+     * flushed. Must be called after {@link #addToGroupCommit(Collection)}
+     * and before the commands are applied, while holding the write locks
+     * for their keys. The entry isn't on disk until
+     * {@link #forceGroupCommitJournal(long)} has been called for it.
+     * 
+     * @param txId the id of the transaction.
+     * @param batches the commands of the transaction, one batch per key.
+     * @return the number of the journal entry.
+     */
+    long journalGroupCommit( long txId, Collection<LuceneBatchCommand> batches )
+    {
+        try
+        {
+            return groupCommitJournal.append( txId, batches );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Unable to journal group commit of " +
+                "transaction " + txId, e );
+        }
+    }
+    
+    /**
+     * Forces the journal entry {@code entry} to disk, sharing the fsync
+     * with the transactions committing at the same time. Must be called
+     * without holding any write lock, so that other transactions can
+     * apply their commands meanwhile, and before the transaction is done.
+     * 
+     * @param entry the number of the entry, see
+     * {@link #journalGroupCommit(long, Collection)}.
+     */
+    void forceGroupCommitJournal( long entry )
+    {
+        try
+        {
+            groupCommitJournal.force( entry );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Unable to force lucene group " +
+                "commit journal", e );
+        }
+    }
+    
+    /**
+     * Commits the writers and refreshes the searchers for all the keys
+     * modified since the last group boundary and then drops the journal of
+     * the group. Must be called without holding any write lock.
+     */
+    void flushGroupCommit()
+    {
+        // One flush at a time, or a later group could drop the journal of
+        // a group which is still being flushed
+        synchronized ( groupFlushLock )
+        {
+            Collection<String> keys;
+            long journalFile;
+            synchronized ( groupCommitKeys )
+            {
+                keys = new ArrayList<String>( groupCommitKeys );
+                groupCommitTransactions = 0;
+                // Transactions added after this are journaled in the next
+                // file, the ones before are covered by the keys above
+                journalFile = rotateGroupCommitJournal();
+            }
+            for ( String key : keys )
+            {
+                getWriteLock( key );
+                try
+                {
+                    commitWriter( key );
+                    searcherChanged( key );
+                    synchronized ( groupCommitKeys )
+                    {
+                        groupCommitKeys.remove( key );
+                    }
+                }
+                finally
+                {
+                    releaseWriteLock( key );
+                }
+            }
+            groupCommitJournal.deleteUpTo( journalFile );
+        }
+    }
+    
+    private long rotateGroupCommitJournal()
+    {
+        try
+        {
+            return groupCommitJournal.rotate();
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Unable to rotate lucene group " +
+                "commit journal", e );
+        }
+    }
+    
+    /**
+     * Applies the journaled transactions of groups which weren't flushed
+     * before the last shutdown, see {@link #GROUP_COMMIT}, skipping the
+     * ones the indexes already have. The touched writers are committed and
+     * the journal is dropped before the logical log is recovered.
+     */
+    private void replayGroupCommitJournal()
+    {
+        List<GroupCommitJournal.Entry> entries;
+        try
+        {
+            entries = groupCommitJournal.readAll();
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Unable to read lucene group " +
+                "commit journal in " + storeDir, e );
+        }
+        Set<String> replayedKeys = new HashSet<String>();
+        for ( GroupCommitJournal.Entry entry : entries )
+        {
+            for ( LuceneBatchCommand batch : entry.batches )
+            {
+                String key = batch.getKey();
+                if ( isAppliedOnDisk( key, entry.txId ) )
+                {
+                    continue;
+                }
+                getWriteLock( key );
+                try
+                {
+                    applyToWriter( key, batch.getCommands(), entry.txId );
+                }
+                finally
+                {
+                    releaseWriteLock( key );
+                }
+                replayedKeys.add( key );
+            }
+        }
+        for ( String key : replayedKeys )
+        {
+            getWriteLock( key );
+            try
+            {
+                commitWriter( key );
+            }
+            finally
+            {
+                releaseWriteLock( key );
+            }
+        }
+        // The logical log recovery reads the watermarks anew
+        recoveryWatermarks.clear();
+        groupCommitJournal.deleteUpTo( rotateGroupCommitJournal() );
+    }
+    
+    /**
+     * Returns whether or not {@code key} has been modified by transactions
+     * whose group hasn't been flushed yet, i.e. if the searcher for
+     * {@code key} is behind. Near-real-time searchers are never behind.
+     * 
+     * @param key the index key.
+     * @return whether or not there are unflushed changes for {@code key}.
+     */
+    private boolean hasPendingGroupCommit( String key )
+    {
+        if ( !groupCommit || nearRealTime )
+        {
+            return false;
+        }
+        synchronized ( groupCommitKeys )
+        {
+            return groupCommitKeys.contains( key );
+        }
+    }
+    
+    /**
+     * Returns whether or not the searcher for {@code key} may be missing
+     * committed changes, either because they're part of a group commit
+     * which hasn't been flushed yet or because the background refresher
+     * hasn't refreshed it yet. Results from such a searcher mustn't be
+     * cached.
+     * 
+     * @param key the index key.
+     * @return whether or not the searcher for {@code key} may be behind.
+     */
+    boolean isSearcherBehind( String key )
+    {
+        return hasPendingGroupCommit( key ) || staleSearchers.containsKey( key );
+    }
+    
+    /**
+     * Tells whether or not {@code term} might be in the index of
+     * {@code searcher}. Each segment is checked with its Bloom filter, see
+     * {@link #TERM_FILTERS}, or with its term dictionary if it doesn't have
+     * a filter (yet). Only the exact values of
+     * {@link LuceneIndexService#DOC_INDEX_KEY} are checked.
+     * 
+     * @param searcher the searcher, which the caller holds a reference to.
+     * @param term the term.
+     * @return {@code false} if {@code term} definitely isn't in the index,
+     * {@code true} if it might be.
+     */
+    boolean mightContain( IndexSearcherRef searcher, Term term )
+    {
+        if ( termFilterBuilder == null ||
+            !term.field().equals( LuceneIndexService.DOC_INDEX_KEY ) )
+        {
+            return true;
+        }
+        IndexReader[] segments = searcher.getSegments();
+        TermBloomFilter[] filters = searcher.getTermFilters();
+        try
+        {
+            for ( int i = 0; i < segments.length; i++ )
+            {
+                TermBloomFilter filter = filters != null ? filters[i] : null;
+                if ( filter != null ? filter.mightContain( term.text() ) :
+                    segments[i].docFreq( term ) > 0 )
+                {
+                    return true;
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( e );
+        }
+        return false;
+    }
+    
+    /**
+     * Has the term filters of the segments of a newly published
+     * {@code searcher} built in the background, the filters of the segments
+     * it shares with the previous searcher of its key are reused.
+     */
+    private void buildTermFilters( final IndexSearcherRef searcher )
+    {
+        if ( termFilterBuilder == null )
+        {
+            return;
+        }
+        termFilterBuilder.execute( new Runnable()
+        {
+            public void run()
+            {
+                // It may have been replaced and closed already
+                if ( !searcher.tryIncRef() )
+                {
+                    return;
+                }
+                try
+                {
+                    IndexReader[] segments = searcher.getSegments();
+                    TermBloomFilter[] filters =
+                        new TermBloomFilter[segments.length];
+                    for ( int i = 0; i < segments.length; i++ )
+                    {
+                        filters[i] = getTermFilter( segments[i] );
+                    }
+                    searcher.setTermFilters( filters );
+                }
+                catch ( IOException e )
+                {
+                    // Lookups keep on checking the term dictionaries
+                    log.log( Level.WARNING, "Unable to build term filters " +
+                        "for " + searcher.getKey(), e );
+                }
+                finally
+                {
+                    searcher.release();
+                }
+            }
+        } );
+    }
+    
+    /**
+     * @return the filter of {@code segment}, or {@code null} if it has too
+     * few or too many terms to get one.
+     */
+    private TermBloomFilter getTermFilter( IndexReader segment )
+        throws IOException
+    {
+        Object core = segment.getCoreCacheKey();
+        TermBloomFilter filter = termFilters.get( core );
+        if ( filter == null )
+        {
+            long terms = segment.getUniqueTermCount();
+            if ( terms < termFilterMinTerms || terms > termFilterMaxTerms )
+            {
+                return null;
+            }
+            filter = TermBloomFilter.build( segment,
+                LuceneIndexService.DOC_INDEX_KEY, terms );
+            termFilters.put( core, filter );
+        }
+        return filter;
+    }
+    
+    /**
+     * Starts optimizing the indexes on disk, one key at a time, in a
+     * background thread. The merges run alongside commits to the key being
+     * optimized, its write lock is only taken to get its writer and to
+     * commit the optimized index. If an earlier background
+     * optimize was stopped before it was done it's resumed from where it
+     * stopped instead of starting over, {@code maxSegments} and
+     * {@code listenerOrNull} then replace the ones it was started with.
+     * 
+     * @param maxSegments the maximum number of segments to leave in each
+     * index, {@code 1} for a full optimize.
+     * @param listenerOrNull notified as each key is optimized, or
+     * {@code null}.
+     */
+    synchronized void startBackgroundOptimize( int maxSegments,
+        OptimizeProgressListener listenerOrNull )
     {
-        IndexSearcherRef searcher = indexSearchers.get( key );
-        if ( searcher != null )
+        optimizeMaxSegments = maxSegments;
+        optimizeListener = listenerOrNull;
+        if ( keysToOptimize.isEmpty() )
         {
-            IndexSearcherRef refreshedSearcher = refreshSearcher( searcher );
-            if ( refreshedSearcher != null )
+            File[] dirs = new File( storeDir ).listFiles();
+            for ( File dir : dirs != null ? dirs : new File[0] )
             {
-                indexSearchers.put( key, refreshedSearcher );
+                if ( dir.isDirectory() )
+                {
+                    keysToOptimize.add( dir.getName() );
+                }
             }
+            optimizedKeys = 0;
+            totalKeysToOptimize = keysToOptimize.size();
+        }
+        if ( backgroundOptimizer != null )
+        {
+            return;
         }
+        final ExecutorService optimizer = Executors.newSingleThreadExecutor(
+            new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable,
+                        "Lucene background optimizer" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        backgroundOptimizer = optimizer;
+        optimizer.execute( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    while ( optimizeNextKey( optimizer ) )
+                    {
+                        // Until stopped or done
+                    }
+                }
+                catch ( RuntimeException e )
+                {
+                    // The failed key is left for the next run
+                    log.log( Level.WARNING, "Background optimize failed", e );
+                }
+                finally
+                {
+                    backgroundOptimizeDone( optimizer );
+                }
+            }
+        } );
     }
     
-    void closeIndexSearcher( String key )
+    /**
+     * @return {@code false} if {@code optimizer} has been stopped or there
+     * are no more keys to optimize.
+     */
+    private boolean optimizeNextKey( ExecutorService optimizer )
     {
+        String key;
+        int maxSegments;
+        synchronized ( this )
+        {
+            if ( backgroundOptimizer != optimizer || keysToOptimize.isEmpty() )
+            {
+                return false;
+            }
+            key = keysToOptimize.iterator().next();
+            maxSegments = optimizeMaxSegments;
+        }
+        
+        IndexWriterContext context = null;
+        getWriteLock( key );
         try
         {
-            IndexSearcherRef searcher = indexSearchers.remove( key );
-            if ( searcher != null )
+            // The index may have been deleted since the keys were listed
+            if ( getIndexDir( key ).exists() )
             {
-                searcher.dispose();
+                context = startOptimizing( key );
             }
         }
+        finally
+        {
+            releaseWriteLock( key );
+        }
+        if ( context != null )
+        {
+            optimize( key, context, maxSegments );
+        }
+        
+        OptimizeProgressListener listener;
+        int optimized;
+        int total;
+        synchronized ( this )
+        {
+            keysToOptimize.remove( key );
+            optimized = ++optimizedKeys;
+            total = totalKeysToOptimize;
+            listener = optimizeListener;
+        }
+        if ( listener != null )
+        {
+            listener.optimized( key, optimized, total );
+        }
+        return true;
+    }
+    
+    /**
+     * Optimizes without the write lock for {@code key}, which could be held
+     * for hours on a large index otherwise. The writer merges alongside the
+     * adds and deletes of concurrent commits, the lock is only needed to
+     * commit the merged segments and publish a refreshed searcher.
+     */
+    private void optimize( String key, IndexWriterContext context,
+        int maxSegments )
+    {
+        try
+        {
+            context.writer.optimize( maxSegments, true );
+        }
+        catch ( AlreadyClosedException e )
+        {
+            // The index was deleted while being optimized
+            return;
+        }
         catch ( IOException e )
-        { // OK
+        {
+            throw new RuntimeException( "Unable to optimize " + key, e );
         }
+        finally
+        {
+            optimizingDone( context );
+        }
+        getWriteLock( key );
+        try
+        {
+            if ( getOpenIndexWriter( key ) == context.writer )
+            {
+                commitWriter( context );
+                searcherChanged( key );
+            }
+        }
+        finally
+        {
+            releaseWriteLock( key );
+        }
+    }
+    
+    /**
+     * Gets the writer for {@code key} and keeps it from being closed as
+     * idle until {@link #optimizingDone(IndexWriterContext)}. Must be
+     * called while holding the write lock for {@code key}.
+     */
+    private synchronized IndexWriterContext startOptimizing( String key )
+    {
+        getIndexWriter( key );
+        IndexWriterContext context = indexWriters.get( key );
+        context.optimizing = true;
+        return context;
+    }
+    
+    private synchronized void optimizingDone( IndexWriterContext context )
+    {
+        context.optimizing = false;
+        context.lastUsed = System.currentTimeMillis();
     }
     
-    synchronized IndexWriter getRecoveryIndexWriter( String key )
+    private synchronized void backgroundOptimizeDone( ExecutorService optimizer )
     {
-        IndexWriter writer = recoveryWriters.get( key );
-        if ( writer == null )
+        optimizer.shutdown();
+        if ( backgroundOptimizer == optimizer )
         {
-            writer = getIndexWriter( key );
-            recoveryWriters.put( key, writer );
+            backgroundOptimizer = null;
         }
-        return writer;
     }
     
-    synchronized void removeRecoveryIndexWriter( String key )
+    /**
+     * Stops the background optimize after the key currently being
+     * optimized, if any, is done and waits for that. The remaining keys are
+     * optimized if
+     * {@link #startBackgroundOptimize(int, OptimizeProgressListener)} is
+     * called again. Must be called without holding any write lock.
+     */
+    void stopBackgroundOptimize()
     {
-        recoveryWriters.remove( key );
+        ExecutorService optimizer;
+        synchronized ( this )
+        {
+            optimizer = backgroundOptimizer;
+            backgroundOptimizer = null;
+        }
+        if ( optimizer == null )
+        {
+            return;
+        }
+        // Optimizing a large index can take longer than stopExecutor waits
+        // and the writers mustn't be closed while it's at it, so there's no
+        // time limit. It checks if it's been stopped between the keys.
+        optimizer.shutdown();
+        try
+        {
+            optimizer.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.interrupted();
+            throw new RuntimeException( "Interrupted while waiting for the " +
+                "background optimize to stop", e );
+        }
     }
-
-    synchronized IndexWriter getIndexWriter( String key )
+    
+    private void stopGroupCommitFlusher()
+    {
+        stopExecutor( groupCommitFlusher );
+    }
+    
+    private static void stopExecutor( ExecutorService executor )
     {
+        if ( executor == null )
+        {
+            return;
+        }
+        executor.shutdown();
         try
         {
-            Directory dir = getDirectory( key );
-            IndexWriterConfig config = new IndexWriterConfig( CURRENT_VERSION, getAnalyzer() );
-            IndexWriter writer = new IndexWriter( dir, config );
-            
-            // TODO We should tamper with this value and see how it affects the
-            // general performance. Lucene docs says rather <10 for mixed
-            // reads/writes 
-//            writer.setMergeFactor( 8 );
-            
-            return writer;
+            executor.awaitTermination( 10, TimeUnit.SECONDS );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.interrupted();
+        }
+    }
+    
+    private synchronized void closeWriters()
+    {
+        for ( IndexWriterContext context : indexWriters.values() )
+        {
+            closeWriter( context );
+        }
+        indexWriters.clear();
+    }
+    
+    private void closeWriter( IndexWriterContext context )
+    {
+        // Commits through the format so that the version and the applied
+        // transaction are recorded
+        commitWriter( context );
+        try
+        {
+            context.writer.close();
         }
         catch ( IOException e )
         {
-            throw new RuntimeException( e );
+            throw new RuntimeException( "Unable to close lucene writer "
+                + context.writer, e );
         }
     }
     
-    /*
-     * Returns true if the entire index was deleted (even on disk)
+    /**
+     * Applies {@code commands} to the writer for {@code key} and records
+     * {@code txId} as applied, see {@link #setAppliedTxId(String, long)}.
+     * The writer isn't committed. Must be called while holding the write
+     * lock for {@code key}.
+     * 
+     * @param key the index key.
+     * @param commands the (coalesced) commands of a transaction for
+     * {@code key}.
+     * @param txId the id of the transaction.
      */
-    protected boolean deleteDocumentsUsingWriter( IndexWriter writer,
-        Long nodeId, String key, Object value )
+    void applyToWriter( String key, List<LuceneCommand> commands, long txId )
     {
-        try
+        IndexWriter writer = getIndexWriter( key );
+        // Removals are batched up until the next add (which they may
+        // precede) or the end of the transaction
+        List<Term> deletions = new ArrayList<Term>();
+        for ( LuceneCommand command : commands )
         {
-            if ( nodeId == null && value == null )
+            Long nodeId = command.getNodeId();
+            String value = command.getValue();
+            if ( writer == null )
             {
-                writer.close();
-                deleteIndex( key );
-                return true;
+                writer = getIndexWriter( key );
             }
-            else
+            
+            if ( command instanceof AddCommand )
+            {
+                deleteDocumentsUsingWriter( writer, deletions );
+                addDocument( writer, nodeId, key, value );
+            }
+            else if ( command instanceof RemoveCommand )
             {
-                BooleanQuery query = new BooleanQuery();
-                if ( value != null )
+                if ( nodeId == null && value == null )
                 {
-                    query.add( new TermQuery( new Term( getDeleteDocumentsKey(),
-                        value.toString() ) ), Occur.MUST );
+                    deletions.clear();
+                    deleteIndexUsingWriter( key );
+                    writer = null;
+                }
+                else
+                {
+                    deletions.add( IndexFormat.deleteTerm( nodeId, value ) );
                 }
-                query.add( new TermQuery( new Term(
-                    LuceneIndexService.DOC_ID_KEY, "" + nodeId ) ),
-                    Occur.MUST );
-                writer.deleteDocuments( query );
-                return false;
             }
+            else
+            {
+                throw new RuntimeException( "Unknown command type " +
+                    command + ", " + command.getClass() );
+            }
+        }
+        
+        if ( writer != null )
+        {
+            deleteDocumentsUsingWriter( writer, deletions );
+            setAppliedTxId( key, txId );
+        }
+    }
+    
+    private void addDocument( IndexWriter writer, long nodeId, String key,
+        Object value )
+    {
+        Document document = new Document();
+        fillDocument( document, nodeId, key, value );
+        try
+        {
+            writer.addDocument( document );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+    
+    /**
+     * Deletes the documents matching {@code terms}, see
+     * {@link IndexFormat#deleteTerm(long, Object)}, in one go and clears
+     * {@code terms}.
+     * 
+     * @param writer the writer to delete with.
+     * @param terms the terms to delete the documents for.
+     */
+    void deleteDocumentsUsingWriter( IndexWriter writer, List<Term> terms )
+    {
+        if ( terms.isEmpty() )
+        {
+            return;
+        }
+        try
+        {
+            writer.deleteDocuments( terms.toArray( new Term[terms.size()] ) );
         }
         catch ( IOException e )
         {
-            throw new RuntimeException( "Unable to delete for " + nodeId + ","
-                + "," + value + " using" + writer, e );
+            throw new RuntimeException( "Unable to delete " + terms +
+                " using " + writer, e );
         }
+        terms.clear();
+    }
+    
+    /**
+     * Deletes the entire index for {@code key}, even on disk, and closes
+     * its writer and searcher.
+     * 
+     * @param key the index key.
+     */
+    void deleteIndexUsingWriter( String key )
+    {
+        closeWriter( key );
+        deleteIndex( key );
+        closeIndexSearcher( key );
     }
     
     private void deleteIndex( String key )
@@ -513,33 +2174,40 @@ public class LuceneDataSource extends LogBackedXaDataSource
         }
     }
     
+    /**
+     * @return the field which holds the exact value of each document, used
+     * when rebuilding an index in an older format.
+     */
     protected String getDeleteDocumentsKey()
     {
         return LuceneIndexService.DOC_INDEX_KEY;
     }
 
-    void removeWriter( String key, IndexWriter writer )
+    /**
+     * @param key the index key.
+     * @param value the value.
+     * @return the cached ids of {@code value}, or {@code null} if caching
+     * isn't enabled for {@code key} or they aren't cached. The array
+     * mustn't be modified.
+     */
+    long[] getFromCache( String key, String value )
     {
-        try
-        {
-            writer.close();
-        }
-        catch ( IOException e )
-        {
-            throw new RuntimeException( "Unable to close lucene writer "
-                + writer, e );
-        }
+        return resultCache.get( key, value );
     }
-
-    LruCache<String,Collection<Long>> getFromCache( String key )
+    
+    boolean isCacheEnabled( String key )
     {
-        return caching.get( key );
+        return resultCache.isEnabled( key );
     }
 
     void enableCache( String key, int maxNumberOfCachedEntries )
     {
-        this.caching.put( key, new LruCache<String,Collection<Long>>( key,
-            maxNumberOfCachedEntries, null ) );
+        AtomicLong generation = getGeneration( key );
+        synchronized ( generation )
+        {
+            generation.incrementAndGet();
+            resultCache.enable( key, maxNumberOfCachedEntries );
+        }
     }
     
     /**
@@ -550,35 +2218,193 @@ public class LuceneDataSource extends LogBackedXaDataSource
      */
     Integer getEnabledCacheSize( String key )
     {
-        LruCache<String, Collection<Long>> cache = this.caching.get( key );
-        return cache != null ? cache.maxSize() : null;
+        return resultCache.getMaxEntries( key );
+    }
+    
+    /**
+     * @param key the index key.
+     * @return the statistics of the cache for {@code key}, or {@code null}
+     * if caching has never been enabled for it.
+     */
+    CacheStatistics getCacheStatistics( String key )
+    {
+        return resultCache.getStatistics( key );
+    }
+    
+    /**
+     * Reads are lock free so a commit can invalidate cached results and
+     * publish a refreshed searcher while a reader is searching an older
+     * searcher. Readers grab the generation before acquiring the searcher
+     * and only cache their result if it's still the same, see
+     * {@link #cacheResult(String, long, String, long[])}.
+     * 
+     * @param key the index key.
+     * @return the current cache generation for {@code key}.
+     */
+    long getCacheGeneration( String key )
+    {
+        AtomicLong generation = cacheGenerations.get( key );
+        return generation != null ? generation.get() : 0;
+    }
+    
+    void cacheResult( String key, long generation, String value,
+        long[] nodeIds )
+    {
+        synchronized ( getGeneration( key ) )
+        {
+            if ( getCacheGeneration( key ) == generation )
+            {
+                resultCache.put( key, value, nodeIds );
+            }
+        }
+    }
+    
+    private void bumpCacheGeneration( String key )
+    {
+        AtomicLong generation = getGeneration( key );
+        synchronized ( generation )
+        {
+            if ( resultCache.isEnabled( key ) )
+            {
+                generation.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * The generation of a key is never removed, so it's also the monitor
+     * which makes the generation checks and cache updates of the key
+     * atomic. Other keys aren't blocked by it.
+     */
+    private AtomicLong getGeneration( String key )
+    {
+        AtomicLong generation = cacheGenerations.get( key );
+        if ( generation == null )
+        {
+            generation = new AtomicLong();
+            AtomicLong existing =
+                cacheGenerations.putIfAbsent( key, generation );
+            generation = existing != null ? existing : generation;
+        }
+        return generation;
+    }
+    
+    /**
+     * Drops the cached ids of {@code value} without affecting readers
+     * which are about to cache their results, used when a result turns out
+     * to be too big to be cached.
+     * 
+     * @param key the index key.
+     * @param value the value.
+     */
+    void removeFromCache( String key, String value )
+    {
+        resultCache.remove( key, value );
     }
 
     void invalidateCache( String key, Object value )
     {
-        LruCache<String,Collection<Long>> cache = caching.get( key );
-        if ( cache != null )
+        AtomicLong generation = getGeneration( key );
+        synchronized ( generation )
         {
-            cache.remove( value.toString() );
+            if ( resultCache.isEnabled( key ) )
+            {
+                generation.incrementAndGet();
+                resultCache.remove( key, value.toString() );
+            }
         }
     }
     
+    /**
+     * Drops the cached results of {@code key}, caching stays enabled.
+     * 
+     * @param key the index key.
+     */
     void invalidateCache( String key )
     {
-        caching.remove( key );
+        AtomicLong generation = getGeneration( key );
+        synchronized ( generation )
+        {
+            if ( resultCache.isEnabled( key ) )
+            {
+                generation.incrementAndGet();
+                resultCache.clear( key );
+            }
+        }
+    }
+    
+    /**
+     * Applies the committed {@code commands} of {@code key} to its cached
+     * results instead of dropping them, so that a frequently modified value
+     * doesn't have to be searched for again after each commit. Must only be
+     * called once the searcher for {@code key} has been refreshed with the
+     * changes, so that the patched results match what a search returns.
+     * Removing the entire index drops the cached results of {@code key}.
+     * 
+     * @param key the index key.
+     * @param commands the commands, in the order they were applied.
+     */
+    void patchCache( String key, List<LuceneCommand> commands )
+    {
+        AtomicLong generation = getGeneration( key );
+        synchronized ( generation )
+        {
+            if ( !resultCache.isEnabled( key ) )
+            {
+                return;
+            }
+            // Readers which searched the old searcher mustn't cache
+            // their results
+            generation.incrementAndGet();
+            for ( LuceneCommand command : commands )
+            {
+                Long nodeId = command.getNodeId();
+                String value = command.getValue();
+                if ( nodeId == null )
+                {
+                    resultCache.clear( key );
+                }
+                else if ( value == null )
+                {
+                    resultCache.removeFromAll( key, nodeId );
+                }
+                else
+                {
+                    resultCache.patch( key, value, nodeId,
+                        command instanceof AddCommand );
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return whether or not the cached results can be patched with
+     * committed changes, see {@link #patchCache(String, List)}. That's
+     * only the case if a result holds exactly the nodes indexed with the
+     * value it's cached for, otherwise any change may affect any cached
+     * result and a commit drops all cached results of the keys it touched.
+     */
+    protected boolean canPatchCache()
+    {
+        return true;
     }
     
-    void invalidateCache()
+    /**
+     * Sets the number of ids at which a result is too big to be cached,
+     * dropping the cached results which are that big.
+     * 
+     * @param maxResultSize the number of ids at which a result isn't
+     * cached.
+     */
+    void setCacheMaxResultSize( int maxResultSize )
     {
-        caching.clear();
+        resultCache.setMaxResultSize( maxResultSize );
     }
 
     protected void fillDocument( Document document, long nodeId, String key,
         Object value )
     {
-        document.add( new Field( LuceneIndexService.DOC_ID_KEY,
-            String.valueOf( nodeId ), Field.Store.YES,
-            Field.Index.NOT_ANALYZED ) );
+        IndexFormat.addNodeId( document, nodeId, value );
         document.add( new Field( LuceneIndexService.DOC_INDEX_KEY,
             value.toString(), Field.Store.NO,
             getIndexStrategy( key, value ) ) );
@@ -623,4 +2449,18 @@ public class LuceneDataSource extends LogBackedXaDataSource
     {
         return xaContainer;
     }
+    
+    private static class IndexWriterContext
+    {
+        private final IndexWriter writer;
+        private volatile long lastUsed;
+        private volatile long appliedTxId;
+        private volatile boolean optimizing;
+        
+        IndexWriterContext( IndexWriter writer, long appliedTxId )
+        {
+            this.writer = writer;
+            this.appliedTxId = appliedTxId;
+        }
+    }
 }
@@ -84,4 +84,11 @@ public class LuceneFulltextDataSource extends LuceneDataSource
             getLogicalLog().setKeepLogs( true );
         }
     }
+    
+    @Override
+    protected boolean canPatchCache()
+    {
+        // A value matches documents with other values too
+        return false;
+    }
 }
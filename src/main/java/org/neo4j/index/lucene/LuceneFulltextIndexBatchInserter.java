@@ -39,6 +39,11 @@ import org.neo4j.kernel.impl.batchinsert.BatchInserter;
  * See more information at {link
  * http://wiki.neo4j.org/content/Indexing_with_BatchInserter the Indexing with
  * BatchInserter wiki page}.
+ * 
+ * Analyzing the text is what dominates the time spent indexing, so for
+ * big imports construct it with more than one indexing thread, see
+ * {@link #LuceneFulltextIndexBatchInserter(BatchInserter, int)}, to have
+ * the documents analyzed in parallel.
  */
 public class LuceneFulltextIndexBatchInserter extends
         LuceneIndexBatchInserterImpl
@@ -50,6 +55,17 @@ public class LuceneFulltextIndexBatchInserter extends
     {
         super( inserter );
     }
+    
+    /**
+     * @param inserter the {@link BatchInserter} to use.
+     * @param indexingThreads the number of threads to build and add the
+     * documents with, {@code 1} indexes on the calling thread.
+     */
+    public LuceneFulltextIndexBatchInserter( BatchInserter inserter,
+        int indexingThreads )
+    {
+        super( inserter, indexingThreads );
+    }
 
     @Override
     protected void fillDocument( Document document, long nodeId, String key,
@@ -61,6 +77,19 @@ public class LuceneFulltextIndexBatchInserter extends
                 value.toString(), Field.Store.NO, Field.Index.NOT_ANALYZED ) );
     }
 
+    @Override
+    protected String getValueSourceKey()
+    {
+        return LuceneFulltextIndexService.DOC_INDEX_SOURCE_KEY;
+    }
+
+    @Override
+    protected boolean bufferRecentWrites()
+    {
+        // The queries match words of the values, not the values
+        return false;
+    }
+
     @Override
     protected Index getIndexStrategy()
     {
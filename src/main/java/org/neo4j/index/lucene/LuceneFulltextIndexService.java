@@ -28,6 +28,7 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TermQuery;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -147,10 +148,26 @@ public class LuceneFulltextIndexService extends LuceneIndexService
     }
 
     @Override
-    public void enableCache( String key, int maxNumberOfCachedEntries )
+    protected Sort getDefaultSort( Object matching )
     {
-        // For now, or is it just not feasable
-        throw new UnsupportedOperationException();
+        // Fulltext hits are ranked
+        return matching == MatchingType.EXACT ? null : Sort.RELEVANCE;
+    }
+    
+    /**
+     * Results are cached as their parsed query, after analysis, so that
+     * values which only differ in case or whitespace share a cached result
+     * and so that fulltext and exact matching results don't mix. Any commit
+     * to a key drops its cached results, since a change to one value may
+     * affect the results of any query.
+     */
+    @Override
+    protected String getCacheKey( Object value, Query query,
+        Sort sortingOrNull )
+    {
+        String cacheKey = query.toString();
+        return sortingOrNull != null ? cacheKey + " " + sortingOrNull :
+            cacheKey;
     }
     
     static enum MatchingType
@@ -21,9 +21,7 @@ package org.neo4j.index.lucene;
 
 import java.io.IOException;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
@@ -101,17 +99,8 @@ class LuceneFulltextTransaction extends LuceneTransaction
             }
             else
             {
-                BooleanQuery deletionQuery = new BooleanQuery();
-                if ( value != null )
-                {
-                    deletionQuery.add( new TermQuery( new Term( getDataSource().
-                        getDeleteDocumentsKey(), value.toString() ) ),
-                        Occur.MUST );
-                }
-                deletionQuery.add( new TermQuery( new Term(
-                    LuceneIndexService.DOC_ID_KEY, "" + node.getId() ) ),
-                    Occur.MUST );
-                removeFrom.writer.deleteDocuments( deletionQuery );
+                removeFrom.writer.deleteDocuments(
+                    IndexFormat.deleteTerm( node.getId(), value ) );
             }
             removeFrom.invalidateSearcher();
             
@@ -168,20 +157,20 @@ class LuceneFulltextTransaction extends LuceneTransaction
     }
     
     @Override
-    Set<Long> getDeletedNodesFor( String key, Object value, Object matching )
+    LongSet getDeletedNodesFor( String key, Object value, Object matching )
     {
         return getNodes( getDirectory( fulltextRemoved, key ), key, value, matching,
             true );
     }
 
     @Override
-    Set<Long> getNodesFor( String key, Object value, Object matching )
+    LongSet getNodesFor( String key, Object value, Object matching )
     {
         return getNodes( getDirectory( fulltextIndexed, key ), key, value, matching,
             false );
     }
     
-    private Set<Long> getNodes( DirectoryAndWorkers directory, String key,
+    private LongSet getNodes( DirectoryAndWorkers directory, String key,
         Object value, Object matching, boolean includeAlwaysHit )
     {
         try
@@ -198,12 +187,11 @@ class LuceneFulltextTransaction extends LuceneTransaction
                     Occur.SHOULD );
                 query = booleanQuery;
             }
-            Hits hits = new Hits( searcher, query, null );
-            HashSet<Long> result = new HashSet<Long>();
-            for ( int i = 0; i < hits.length(); i++ )
+            LongSet result = new LongSet();
+            NodeIdLookup nodeIds = new NodeIdLookup( searcher.getIndexReader() );
+            for ( int docId : DocIdCollector.search( searcher, query ) )
             {
-                result.add( Long.valueOf( hits.doc( i ).getField(
-                    LuceneIndexService.DOC_ID_KEY ).stringValue() ) );
+                result.add( nodeIds.getNodeId( docId ) );
             }
             return result;
         }
@@ -47,7 +47,73 @@ public interface LuceneIndexBatchInserter
      * @param value the value to associate {@code node} with.
      */
     void index( long node, String key, Object value );
+    
+    /**
+     * Adds many entries to the index for {@code key} at once, the entry
+     * for {@code nodes[i]} has the value {@code values[i]}. This is faster
+     * than adding them one by one with {@link #index(long, String, Object)}
+     * since the per call overhead is only paid once. The arrays may be
+     * reused by the caller once this method returns.
+     * 
+     * @param nodes the nodes to add entries for.
+     * @param key which index to put them in.
+     * @param values the values to associate the nodes with.
+     * @throws IllegalArgumentException if the arrays differ in length.
+     */
+    void index( long[] nodes, String key, Object[] values );
+    
+    /**
+     * Adds an entry to the index for {@code key} for each node with an id
+     * from {@code fromNode} (inclusive) to {@code toNode} (exclusive) which
+     * has the property {@code propertyKey}, with the value of that
+     * property. The properties are read from the {@link BatchInserter}.
+     * 
+     * @param key which index to put the entries in.
+     * @param propertyKey the property to index.
+     * @param fromNode the first node id to index.
+     * @param toNode the node id after the last one to index.
+     */
+    void indexProperty( String key, String propertyKey, long fromNode,
+        long toNode );
+    
+    /**
+     * Waits until all the entries given to {@link #index(long, String, Object)}
+     * so far have been added to the index and applies the buffered
+     * removals. Only needed if the entries are indexed asynchronously,
+     * reads, {@link #optimize()} and {@link #shutdown()} flush by
+     * themselves.
+     * 
+     * @throws RuntimeException if any of the entries couldn't be indexed.
+     */
+    void flush();
 
+    /**
+     * Removes the entry for {@code node} with {@code value} from the index
+     * for {@code key}. Removals are buffered and applied to the index in
+     * batches, but are visible to reads right away.
+     * 
+     * @param node the node to remove the entry for.
+     * @param key the index to remove it from.
+     * @param value the value of the entry.
+     */
+    void removeIndex( long node, String key, Object value );
+    
+    /**
+     * Removes all the entries for {@code node} from the index for
+     * {@code key}, see {@link #removeIndex(long, String, Object)}.
+     * 
+     * @param node the node to remove the entries for.
+     * @param key the index to remove them from.
+     */
+    void removeIndex( long node, String key );
+    
+    /**
+     * Removes all the entries from the index for {@code key}.
+     * 
+     * @param key the index to clear.
+     */
+    void removeIndex( String key );
+    
     /**
      * Shuts down this index and closes its underlying lucene index files. If
      * this isn't called before the JVM dies then there's no guarantee that the
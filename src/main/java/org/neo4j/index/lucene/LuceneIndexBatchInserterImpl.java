@@ -21,16 +21,26 @@ package org.neo4j.index.lucene;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.LowerCaseFilter;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.WhitespaceTokenizer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexReader;
@@ -53,26 +63,71 @@ import org.neo4j.kernel.impl.util.FileUtils;
 
 /**
  * The implementation of {@link LuceneIndexBatchInserter}.
+ * <p>
+ * By default entries are indexed on the calling thread. Constructed with
+ * more than one indexing thread the documents are built and added to the
+ * writers by a pool of threads instead, fed through a bounded queue. When
+ * the queue is full the calling thread indexes the entry itself, which
+ * keeps the memory used by queued entries bounded. Reads, optimizing and
+ * shutting down wait for the queued entries first, see {@link #flush()}.
  */
 public class LuceneIndexBatchInserterImpl implements LuceneIndexBatchInserter
 {
+    /**
+     * The number of entries which may be queued per indexing thread.
+     */
+    static final int QUEUE_SIZE_PER_THREAD = 1000;
+    
+    /**
+     * The number of entries the bulk methods read or hand to an indexing
+     * thread at a time.
+     */
+    static final int BULK_CHUNK_SIZE = 100;
+    
+    /**
+     * The maximum number of entries kept per key in the buffer of entries
+     * added since the searcher of the key was opened, see
+     * {@link #bufferRecentWrites()}.
+     */
+    static final int MAX_RECENT_WRITES = 10000;
+    
+    /**
+     * The number of removals buffered per key before they're applied to
+     * the writer. They're applied earlier if an entry they would delete is
+     * about to be added, see {@link #applyDeletesMatching(
+     * IndexWriterContext, long, Object)}, or on a read of the key.
+     */
+    static final int DELETE_BATCH_SIZE = 1000;
+    
+    /**
+     * Don't optimize, see {@link #setShutdownOptimize(int,
+     * OptimizeProgressListener)}.
+     */
+    public static final int OPTIMIZE_NONE = 0;
+    
+    /**
+     * Optimize down to a single segment, see {@link #optimize(int,
+     * OptimizeProgressListener)}.
+     */
+    public static final int OPTIMIZE_FULL = 1;
+    
     private final String storeDir;
     private final BatchInserter inserter;
+    private final ExecutorService indexingThreads;
+    private final int indexingThreadCount;
+    private final Object pendingLock = new Object();
+    private int pending;
+    private volatile RuntimeException indexingFailure;
+    private int shutdownOptimize = OPTIMIZE_FULL;
+    private OptimizeProgressListener shutdownOptimizeListener;
+    private int optimizeThreads = Runtime.getRuntime().availableProcessors();
 
     private final ArrayMap<String,IndexWriterContext> indexWriters = 
         new ArrayMap<String,IndexWriterContext>( 6, false, false );
     private final ArrayMap<String,IndexSearcher> indexSearchers = 
         new ArrayMap<String,IndexSearcher>( 6, false, false );
 
-    private final Analyzer fieldAnalyzer = new Analyzer()
-    {
-        @Override
-        public TokenStream tokenStream( String fieldName, Reader reader )
-        {
-            return new LowerCaseFilter( LuceneDataSource.CURRENT_VERSION,
-                    new WhitespaceTokenizer( LuceneDataSource.CURRENT_VERSION, reader ) );
-        }
-    };
+    private final Analyzer fieldAnalyzer = new LowerCaseWhitespaceAnalyzer();
     
     private IndexService asIndexService;
     
@@ -80,10 +135,42 @@ public class LuceneIndexBatchInserterImpl implements LuceneIndexBatchInserter
      * @param inserter the {@link BatchInserter} to use.
      */
     public LuceneIndexBatchInserterImpl( BatchInserter inserter )
+    {
+        this( inserter, 1 );
+    }
+    
+    /**
+     * @param inserter the {@link BatchInserter} to use.
+     * @param indexingThreads the number of threads to build and add the
+     * documents with, {@code 1} indexes on the calling thread.
+     */
+    public LuceneIndexBatchInserterImpl( BatchInserter inserter,
+        int indexingThreads )
     {
         this.inserter = inserter;
         this.storeDir = fixPath( inserter.getStore() + "/" + getDirName() );
         this.asIndexService = new AsIndexService();
+        this.indexingThreadCount = indexingThreads;
+        this.indexingThreads = indexingThreads > 1 ?
+            newIndexingThreads( indexingThreads ) : null;
+    }
+    
+    private static ExecutorService newIndexingThreads( int threads )
+    {
+        return new ThreadPoolExecutor( threads, threads, 0,
+            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                threads * QUEUE_SIZE_PER_THREAD ), new ThreadFactory()
+            {
+                private int counter;
+                
+                public synchronized Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable,
+                        "Lucene batch indexer " + counter++ );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy() );
     }
     
     protected String getDirName()
@@ -111,23 +198,42 @@ public class LuceneIndexBatchInserterImpl implements LuceneIndexBatchInserter
         return FSDirectory.open( new File( storeDir + "/" + key ) );
     }
     
-    private IndexWriterContext getWriter( String key, boolean allowCreate )
+    private IndexWriterContext getWriter( final String key, boolean allowCreate )
             throws IOException
     {
         IndexWriterContext writer = indexWriters.get( key );
+        if ( writer != null )
+        {
+            return writer;
+        }
         Directory dir = instantiateDirectory( key );
-        if ( writer == null && (allowCreate || IndexReader.indexExists( dir ) ) )
+        if ( allowCreate || IndexReader.indexExists( dir ) )
         {
             try
             {
+                IndexFormat.migrateIfNeeded( dir, new IndexWriterConfig(
+                    LuceneDataSource.CURRENT_VERSION, fieldAnalyzer ),
+                    getValueSourceKey(), new IndexFormat.DocumentFactory()
+                    {
+                        public void fillDocument( Document document,
+                            long nodeId, Object value )
+                        {
+                            LuceneIndexBatchInserterImpl.this.fillDocument(
+                                document, nodeId, key, value );
+                        }
+                    } );
                 IndexWriterConfig config = new IndexWriterConfig( LuceneDataSource.CURRENT_VERSION, fieldAnalyzer );
+                // Lets every indexing thread analyze documents in parallel
+                config.setMaxThreadStates( Math.max( indexingThreadCount,
+                    IndexWriterConfig.DEFAULT_MAX_THREAD_STATES ) );
                 IndexWriter indexWriter = new IndexWriter( dir, config );
                 
                 // TODO We should tamper with this value and see how it affects
                 // the general performance. Lucene docs says rather >10 for
                 // batch inserts
 //                indexWriter.setMergeFactor( 15 );
-                writer = new IndexWriterContext( indexWriter );
+                writer = new IndexWriterContext( indexWriter,
+                    bufferRecentWrites() );
             }
             catch ( IOException e )
             {
@@ -135,11 +241,30 @@ public class LuceneIndexBatchInserterImpl implements LuceneIndexBatchInserter
             }
             indexWriters.put( key, writer );
         }
+        else
+        {
+            dir.close();
+        }
         return writer;
     }
     
+    private IndexWriterContext getWriterForIndexing( String key )
+    {
+        try
+        {
+            // The writers are only opened on the calling thread, the
+            // lucene writers themselves are thread safe
+            return getWriter( key, true );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+    
     private IndexSearcher getSearcher( String key )
     {
+        waitForIndexing();
         try
         {
             IndexWriterContext writer = getWriter( key, false );
@@ -157,10 +282,12 @@ public class LuceneIndexBatchInserterImpl implements LuceneIndexBatchInserter
                     oldSearcher.getIndexReader().close();
                     oldSearcher.close();
                 }
+                applyDeletes( writer );
                 IndexReader newReader = IndexReader.open( writer.writer, true );
                 result = new IndexSearcher( newReader );
                 indexSearchers.put( key, result );
                 writer.modifiedFlag = false;
+                writer.clearRecentWrites();
             }
             return result;
         }
@@ -170,16 +297,261 @@ public class LuceneIndexBatchInserterImpl implements LuceneIndexBatchInserter
         }
     }
     
-    public void index( long node, String key, Object value )
+    public void index( final long node, final String key, final Object value )
+    {
+        final IndexWriterContext writer = getWriterForIndexing( key );
+        applyDeletesMatching( writer, node, value );
+        writer.recordWrite( node, value );
+        if ( indexingThreads == null )
+        {
+            addDocument( writer, node, key, value );
+            return;
+        }
+        submit( new Runnable()
+        {
+            public void run()
+            {
+                addDocument( writer, node, key, value );
+            }
+        } );
+    }
+    
+    public void index( long[] nodes, String key, Object[] values )
+    {
+        if ( nodes.length != values.length )
+        {
+            throw new IllegalArgumentException( nodes.length +
+                " nodes, but " + values.length + " values" );
+        }
+        index( getWriterForIndexing( key ), key, nodes, values, nodes.length );
+    }
+    
+    public void indexProperty( String key, String propertyKey,
+        long fromNode, long toNode )
+    {
+        IndexWriterContext writer = getWriterForIndexing( key );
+        long[] nodes = new long[BULK_CHUNK_SIZE];
+        Object[] values = new Object[BULK_CHUNK_SIZE];
+        int count = 0;
+        for ( long node = fromNode; node < toNode; node++ )
+        {
+            if ( !inserter.nodeExists( node ) )
+            {
+                continue;
+            }
+            Object value = inserter.getNodeProperties( node ).get( propertyKey );
+            if ( value == null )
+            {
+                continue;
+            }
+            nodes[count] = node;
+            values[count++] = value;
+            if ( count == BULK_CHUNK_SIZE )
+            {
+                index( writer, key, nodes, values, count );
+                count = 0;
+            }
+        }
+        index( writer, key, nodes, values, count );
+    }
+    
+    /**
+     * Indexes the first {@code count} entries of {@code nodes} and
+     * {@code values}, which the caller may reuse once this returns.
+     */
+    private void index( final IndexWriterContext writer, final String key,
+        long[] nodes, Object[] values, int count )
+    {
+        for ( int i = 0; i < count; i++ )
+        {
+            // None of the entries has been handed to the writer yet
+            applyDeletesMatching( writer, nodes[i], values[i] );
+            writer.recordWrite( nodes[i], values[i] );
+        }
+        if ( indexingThreads == null )
+        {
+            addDocuments( writer, key, nodes, values, 0, count );
+            return;
+        }
+        for ( int start = 0; start < count; start += BULK_CHUNK_SIZE )
+        {
+            final int length = Math.min( BULK_CHUNK_SIZE, count - start );
+            final long[] chunkNodes = new long[length];
+            final Object[] chunkValues = new Object[length];
+            System.arraycopy( nodes, start, chunkNodes, 0, length );
+            System.arraycopy( values, start, chunkValues, 0, length );
+            submit( new Runnable()
+            {
+                public void run()
+                {
+                    addDocuments( writer, key, chunkNodes, chunkValues, 0,
+                        length );
+                }
+            } );
+        }
+    }
+    
+    /**
+     * Hands {@code task} to the indexing threads, {@link #flush()} waits
+     * for it to complete and rethrows its failure, if any.
+     */
+    private void submit( final Runnable task )
+    {
+        checkIndexingFailure();
+        synchronized ( pendingLock )
+        {
+            pending++;
+        }
+        indexingThreads.execute( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    if ( indexingFailure == null )
+                    {
+                        task.run();
+                    }
+                }
+                catch ( RuntimeException e )
+                {
+                    indexingFailure = e;
+                }
+                finally
+                {
+                    synchronized ( pendingLock )
+                    {
+                        if ( --pending == 0 )
+                        {
+                            pendingLock.notifyAll();
+                        }
+                    }
+                }
+            }
+        } );
+    }
+    
+    public void removeIndex( long node, String key, Object value )
+    {
+        removeIndex( node, key, IndexFormat.deleteTerm( node, value ), value );
+    }
+    
+    public void removeIndex( long node, String key )
+    {
+        removeIndex( node, key, IndexFormat.deleteTerm( node, null ), null );
+    }
+    
+    private void removeIndex( long node, String key, Term term,
+        Object valueOrNull )
+    {
+        IndexWriterContext writer = getExistingWriter( key );
+        if ( writer == null )
+        {
+            return;
+        }
+        writer.recordRemoval( node, valueOrNull );
+        writer.pendingDeletes.add( term );
+        if ( writer.pendingDeletes.size() >= DELETE_BATCH_SIZE )
+        {
+            applyDeletes( writer );
+        }
+    }
+    
+    public void removeIndex( String key )
+    {
+        IndexWriterContext writer = getExistingWriter( key );
+        if ( writer == null )
+        {
+            return;
+        }
+        waitForIndexing();
+        writer.pendingDeletes.clear();
+        try
+        {
+            writer.writer.deleteAll();
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( e );
+        }
+        writer.modifiedFlag = true;
+        writer.clearRecentWrites();
+    }
+    
+    /**
+     * @param key the index key.
+     * @return the number of removals buffered for {@code key}, which
+     * haven't been applied to its writer yet.
+     */
+    int getPendingDeleteCount( String key )
+    {
+        IndexWriterContext writer = indexWriters.get( key );
+        return writer != null ? writer.pendingDeletes.size() : 0;
+    }
+    
+    private IndexWriterContext getExistingWriter( String key )
+    {
+        try
+        {
+            return getWriter( key, false );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+    
+    /**
+     * Applies the buffered removals of {@code writer} if one of them would
+     * delete the entry about to be added for {@code node} and
+     * {@code value}. A removal must only affect the entries added before
+     * it, but other entries don't have to wait for the removals, which
+     * would drain the indexing threads for every removal.
+     */
+    private void applyDeletesMatching( IndexWriterContext writer, long node,
+        Object value )
+    {
+        if ( !writer.pendingDeletes.isEmpty() &&
+            ( writer.pendingDeletes.contains( IndexFormat.deleteTerm( node,
+                value ) ) || writer.pendingDeletes.contains(
+                IndexFormat.deleteTerm( node, null ) ) ) )
+        {
+            applyDeletes( writer );
+        }
+    }
+    
+    /**
+     * Applies the buffered removals of {@code writer} in one go. The
+     * entries queued for the indexing threads are added first, since the
+     * removals must be applied to them.
+     */
+    private void applyDeletes( IndexWriterContext writer )
+    {
+        if ( writer.pendingDeletes.isEmpty() )
+        {
+            return;
+        }
+        waitForIndexing();
+        try
+        {
+            writer.writer.deleteDocuments( writer.pendingDeletes.toArray(
+                new Term[writer.pendingDeletes.size()] ) );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( e );
+        }
+        writer.pendingDeletes.clear();
+    }
+    
+    private void addDocument( IndexWriterContext writer, long node,
+        String key, Object value )
     {
         try
         {
-            IndexWriterContext writer = getWriter( key, true );
             Document document = new Document();
             fillDocument( document, node, key, value );
-            
             writer.writer.addDocument( document );
-            writer.modifiedFlag = true;
         }
         catch ( IOException e )
         {
@@ -187,16 +559,101 @@ public class LuceneIndexBatchInserterImpl implements LuceneIndexBatchInserter
         }
     }
     
+    private void addDocuments( IndexWriterContext writer, String key,
+        long[] nodes, Object[] values, int start, int end )
+    {
+        try
+        {
+            // The writer is done with a document when addDocument returns,
+            // so one document is refilled for all the entries
+            Document document = new Document();
+            for ( int i = start; i < end; i++ )
+            {
+                document.getFields().clear();
+                fillDocument( document, nodes[i], key, values[i] );
+                writer.writer.addDocument( document );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+    
+    public void flush()
+    {
+        waitForIndexing();
+        for ( IndexWriterContext writer : indexWriters.values() )
+        {
+            applyDeletes( writer );
+        }
+    }
+    
+    /**
+     * Waits for the entries handed to the indexing threads and rethrows
+     * the failure of any of them.
+     */
+    private void waitForIndexing()
+    {
+        synchronized ( pendingLock )
+        {
+            while ( pending > 0 )
+            {
+                try
+                {
+                    pendingLock.wait();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.interrupted();
+                    throw new RuntimeException(
+                        "Interrupted while waiting for indexing", e );
+                }
+            }
+        }
+        checkIndexingFailure();
+    }
+    
+    private void checkIndexingFailure()
+    {
+        if ( indexingFailure != null )
+        {
+            throw new RuntimeException( "Unable to index", indexingFailure );
+        }
+    }
+    
     protected void fillDocument( Document document, long nodeId, String key,
         Object value )
     {
-        document.add( new Field( LuceneIndexService.DOC_ID_KEY,
-            String.valueOf( nodeId ), Field.Store.YES,
-            Field.Index.NOT_ANALYZED ) );
+        IndexFormat.addNodeId( document, nodeId, value );
         document.add( new Field( LuceneIndexService.DOC_INDEX_KEY,
             value.toString(), Field.Store.NO, getIndexStrategy() ) );
     }
     
+    /**
+     * @return the field which holds the exact value of each document,
+     * used to rebuild indexes in an older format.
+     */
+    protected String getValueSourceKey()
+    {
+        return LuceneIndexService.DOC_INDEX_KEY;
+    }
+    
+    /**
+     * Returns whether or not the entries added since the searcher of a key
+     * was opened are kept in memory, so that reads can be answered from the
+     * searcher and that buffer instead of reopening the searcher after
+     * every write. The searcher is reopened when the buffer fills up. This
+     * only works if {@link #formQuery(String, Object)} matches exactly the
+     * entries with the given value.
+     * 
+     * @return whether or not recent writes should be buffered.
+     */
+    protected boolean bufferRecentWrites()
+    {
+        return true;
+    }
+    
     protected Field.Index getIndexStrategy()
     {
         return Field.Index.NOT_ANALYZED;
@@ -206,14 +663,21 @@ public class LuceneIndexBatchInserterImpl implements LuceneIndexBatchInserter
     {
         try
         {
+            flush();
+            if ( indexingThreads != null )
+            {
+                indexingThreads.shutdown();
+            }
             for ( IndexSearcher searcher : indexSearchers.values() )
             {
                 searcher.close();
             }
             indexSearchers.clear();
-            optimize();
+            optimize( shutdownOptimize, shutdownOptimizeListener );
             for ( IndexWriterContext writer : indexWriters.values() )
             {
+                applyDeletes( writer );
+                IndexFormat.commit( writer.writer );
                 writer.writer.close();
             }
             indexWriters.clear();
@@ -226,7 +690,7 @@ public class LuceneIndexBatchInserterImpl implements LuceneIndexBatchInserter
 
     public IndexHits<Long> getNodes( String key, Object value )
     {
-        Set<Long> nodeSet = new HashSet<Long>();
+        LongSet nodeSet = new LongSet();
         try
         {
             Query query = formQuery( key, value );
@@ -236,20 +700,25 @@ public class LuceneIndexBatchInserterImpl implements LuceneIndexBatchInserter
                 return new SimpleIndexHits<Long>(
                     Collections.<Long>emptyList(), 0 );
             }
-            Hits hits = new Hits( searcher, query, null );
-            for ( int i = 0; i < hits.length(); i++ )
+            NodeIdLookup nodeIds = new NodeIdLookup( searcher.getIndexReader() );
+            for ( int docId : DocIdCollector.search( searcher, query ) )
+            {
+                nodeSet.add( nodeIds.getNodeId( docId ) );
+            }
+            // The entries removed and added since the searcher was opened
+            IndexWriterContext writer = indexWriters.get( key );
+            for ( long node : writer.getRecentRemovals( value ).toArray() )
             {
-                Document document = hits.doc( i );
-                long id = Long.parseLong( document.getField(
-                    LuceneIndexService.DOC_ID_KEY ).stringValue() );
-                nodeSet.add( id );
+                nodeSet.remove( node );
             }
+            nodeSet.addAll( writer.getRecentWrites( value ) );
         }
         catch ( IOException e )
         {
             throw new RuntimeException( e );
         }
-        return new SimpleIndexHits<Long>( nodeSet, nodeSet.size() );
+        return new SimpleIndexHits<Long>( new LongArray( nodeSet.toArray() ),
+            nodeSet.size() );
     }
     
     protected Query formQuery( String key, Object value )
@@ -260,19 +729,111 @@ public class LuceneIndexBatchInserterImpl implements LuceneIndexBatchInserter
     
     public void optimize()
     {
+        optimize( OPTIMIZE_FULL, null );
+    }
+    
+    /**
+     * Optimizes the indexes written to by this batch inserter, each one
+     * down to at most {@code maxSegments} segments. The keys are optimized
+     * in parallel by up to {@link #setOptimizeThreads(int)} threads and
+     * this method returns when all of them are done.
+     * 
+     * @param maxSegments the maximum number of segments to leave in each
+     * index, {@link #OPTIMIZE_FULL} for a full optimize or
+     * {@link #OPTIMIZE_NONE} to do nothing.
+     * @param listenerOrNull notified as each key is optimized, or
+     * {@code null}.
+     */
+    public void optimize( final int maxSegments,
+        final OptimizeProgressListener listenerOrNull )
+    {
+        flush();
+        if ( maxSegments == OPTIMIZE_NONE || indexWriters.size() == 0 )
+        {
+            return;
+        }
+        
+        final int totalKeys = indexWriters.size();
+        final AtomicInteger optimizedKeys = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(
+            Math.max( 1, Math.min( optimizeThreads, totalKeys ) ),
+            new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable,
+                        "Lucene batch optimizer" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        List<Future<Void>> optimizes = new ArrayList<Future<Void>>();
+        for ( final String key : indexWriters.keySet() )
+        {
+            final IndexWriterContext writer = indexWriters.get( key );
+            applyDeletes( writer );
+            writer.modifiedFlag = true;
+            optimizes.add( pool.submit( new Callable<Void>()
+            {
+                public Void call() throws IOException
+                {
+                    writer.writer.optimize( maxSegments, true );
+                    int optimized = optimizedKeys.incrementAndGet();
+                    if ( listenerOrNull != null )
+                    {
+                        listenerOrNull.optimized( key, optimized, totalKeys );
+                    }
+                    return null;
+                }
+            } ) );
+        }
+        pool.shutdown();
         try
         {
-            for ( IndexWriterContext writer : indexWriters.values() )
+            for ( Future<Void> optimize : optimizes )
             {
-                writer.writer.optimize( true );
-                writer.modifiedFlag = true;
+                optimize.get();
             }
         }
-        catch ( IOException e )
+        catch ( InterruptedException e )
         {
-            throw new RuntimeException( e );
+            Thread.interrupted();
+            throw new RuntimeException( "Interrupted while optimizing", e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new RuntimeException( "Unable to optimize", e.getCause() );
         }
     }
+    
+    /**
+     * Sets how the indexes are optimized when this batch inserter is shut
+     * down, the default is a full optimize. Skipping it, or leaving more
+     * segments, makes the shut down faster at the cost of slower reads
+     * until the indexes have been merged or optimized otherwise, see
+     * {@link LuceneIndexService#optimizeInBackground(int,
+     * OptimizeProgressListener)}.
+     * 
+     * @param maxSegments the maximum number of segments to leave in each
+     * index, {@link #OPTIMIZE_FULL} or {@link #OPTIMIZE_NONE}.
+     * @param listenerOrNull notified as each key is optimized, or
+     * {@code null}.
+     */
+    public void setShutdownOptimize( int maxSegments,
+        OptimizeProgressListener listenerOrNull )
+    {
+        this.shutdownOptimize = maxSegments;
+        this.shutdownOptimizeListener = listenerOrNull;
+    }
+    
+    /**
+     * @param threads the maximum number of keys to optimize in parallel,
+     * the default is the number of available processors.
+     */
+    public void setOptimizeThreads( int threads )
+    {
+        this.optimizeThreads = threads;
+    }
 
     public long getSingleNode( String key, Object value )
     {
@@ -322,17 +883,18 @@ public class LuceneIndexBatchInserterImpl implements LuceneIndexBatchInserter
 
         public void removeIndex( Node node, String key, Object value )
         {
-            throw new UnsupportedOperationException();
+            LuceneIndexBatchInserterImpl.this.removeIndex( node.getId(), key,
+                value );
         }
 
         public void removeIndex( Node node, String key )
         {
-            throw new UnsupportedOperationException();
+            LuceneIndexBatchInserterImpl.this.removeIndex( node.getId(), key );
         }
         
         public void removeIndex( String key )
         {
-            throw new UnsupportedOperationException();
+            LuceneIndexBatchInserterImpl.this.removeIndex( key );
         }
         
         public void shutdown()
@@ -341,15 +903,126 @@ public class LuceneIndexBatchInserterImpl implements LuceneIndexBatchInserter
         }
     }
     
+    /**
+     * Only accessed by the calling thread, the indexing threads only use
+     * the writer.
+     */
     private static class IndexWriterContext
     {
         private final IndexWriter writer;
         private boolean modifiedFlag;
+        private final Map<String,LongSet> recentWrites;
+        private final Map<String,LongSet> recentRemovals;
+        private int recentCount;
+        private final Set<Term> pendingDeletes = new HashSet<Term>();
         
-        IndexWriterContext( IndexWriter writer )
+        IndexWriterContext( IndexWriter writer, boolean bufferRecentWrites )
         {
             this.writer = writer;
             this.modifiedFlag = true;
+            this.recentWrites = bufferRecentWrites ?
+                new HashMap<String,LongSet>() : null;
+            this.recentRemovals = bufferRecentWrites ?
+                new HashMap<String,LongSet>() : null;
+        }
+        
+        /**
+         * Records an entry added to the writer, either in the recent writes
+         * or by flagging the searcher for reopening if there's no room.
+         */
+        void recordWrite( long node, Object value )
+        {
+            if ( hasRoom() )
+            {
+                String key = value.toString();
+                remove( recentRemovals, key, node );
+                add( recentWrites, key, node );
+            }
+        }
+        
+        /**
+         * Like {@link #recordWrite(long, Object)} for a removal. Removing all
+         * the entries of a node always flags the searcher for reopening,
+         * since its values aren't known.
+         */
+        void recordRemoval( long node, Object valueOrNull )
+        {
+            if ( valueOrNull == null )
+            {
+                modifiedFlag = true;
+                clearRecentWrites();
+            }
+            else if ( hasRoom() )
+            {
+                String key = valueOrNull.toString();
+                remove( recentWrites, key, node );
+                add( recentRemovals, key, node );
+            }
+        }
+        
+        private boolean hasRoom()
+        {
+            if ( modifiedFlag )
+            {
+                // Reopened on the next read anyway
+                return false;
+            }
+            if ( recentWrites == null || recentCount >= MAX_RECENT_WRITES )
+            {
+                modifiedFlag = true;
+                clearRecentWrites();
+                return false;
+            }
+            recentCount++;
+            return true;
+        }
+        
+        private static void add( Map<String,LongSet> map, String key,
+            long node )
+        {
+            LongSet nodes = map.get( key );
+            if ( nodes == null )
+            {
+                nodes = new LongSet();
+                map.put( key, nodes );
+            }
+            nodes.add( node );
+        }
+        
+        private static void remove( Map<String,LongSet> map, String key,
+            long node )
+        {
+            LongSet nodes = map.get( key );
+            if ( nodes != null && nodes.remove( node ) && nodes.isEmpty() )
+            {
+                map.remove( key );
+            }
+        }
+        
+        LongSet getRecentWrites( Object value )
+        {
+            return get( recentWrites, value );
+        }
+        
+        LongSet getRecentRemovals( Object value )
+        {
+            return get( recentRemovals, value );
+        }
+        
+        private static LongSet get( Map<String,LongSet> map, Object value )
+        {
+            LongSet nodes = map != null ? map.get( value.toString() ) : null;
+            return nodes != null ? nodes : LongSet.EMPTY;
+        }
+        
+        void clearRecentWrites()
+        {
+            if ( recentWrites != null )
+            {
+                recentWrites.clear();
+                recentRemovals.clear();
+            }
+            recentCount = 0;
         }
     }
     
@@ -23,12 +23,9 @@ import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import javax.transaction.Synchronization;
 import javax.transaction.SystemException;
@@ -44,8 +41,8 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.NotInTransactionException;
 import org.neo4j.helpers.collection.CombiningIterator;
-import org.neo4j.helpers.collection.FilteringIterator;
 import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.index.lucene.DocIdCollector.DocIds;
 import org.neo4j.index.IndexHits;
 import org.neo4j.index.IndexService;
 import org.neo4j.index.impl.GenericIndexService;
@@ -53,7 +50,6 @@ import org.neo4j.index.impl.IdToNodeIterator;
 import org.neo4j.index.impl.SimpleIndexHits;
 import org.neo4j.kernel.AbstractGraphDatabase;
 import org.neo4j.kernel.Config;
-import org.neo4j.kernel.impl.cache.LruCache;
 import org.neo4j.kernel.impl.transaction.LockManager;
 import org.neo4j.kernel.impl.transaction.TxModule;
 import org.neo4j.kernel.impl.util.ArrayMap;
@@ -114,6 +110,7 @@ public class LuceneIndexService extends GenericIndexService
                 getDataSourceClass().getName(), resourceId, params, true );
         broker = new ConnectionBroker( txManager, xaDs );
         xaDs.setIndexService( this );
+        xaDs.setCacheMaxResultSize( lazynessThreshold );
     }
 
     protected Class<? extends LuceneDataSource> getDataSourceClass()
@@ -159,6 +156,53 @@ public class LuceneIndexService extends GenericIndexService
     {
         return xaDs.getEnabledCacheSize( key );
     }
+    
+    /**
+     * Returns the hit, miss, eviction and size counters of the cache for
+     * {@code key}. The cached results of all keys together are bounded by
+     * an estimate of the bytes they use, see
+     * {@link LuceneDataSource#CACHE_MAX_BYTES}, so a key may hold fewer
+     * entries than its max number of cached entries.
+     * 
+     * @param key the key to get the cache statistics for.
+     * @return the cache statistics for {@code key} or {@code null} if cache
+     * has never been enabled for that key.
+     */
+    public CacheStatistics getCacheStatistics( String key )
+    {
+        return xaDs.getCacheStatistics( key );
+    }
+
+    /**
+     * Starts optimizing the indexes in a background thread, one key at a
+     * time. The merges run alongside transactions modifying the key being
+     * optimized, it's only locked for writing while the optimized index is
+     * committed. Useful after an import with the batch inserter
+     * which skipped the optimize at shut down. If a background optimize
+     * was stopped with {@link #stopBackgroundOptimize()} it's resumed with
+     * the keys which weren't optimized yet.
+     * 
+     * @param maxSegments the maximum number of segments to leave in each
+     * index, {@code 1} for a full optimize.
+     * @param listenerOrNull notified as each key is optimized, or
+     * {@code null}.
+     */
+    public void optimizeInBackground( int maxSegments,
+        OptimizeProgressListener listenerOrNull )
+    {
+        xaDs.startBackgroundOptimize( maxSegments, listenerOrNull );
+    }
+    
+    /**
+     * Stops a background optimize started with
+     * {@link #optimizeInBackground(int, OptimizeProgressListener)} once the
+     * key currently being optimized is done, and waits for that. Shutting
+     * down stops it too, before the writers are closed.
+     */
+    public void stopBackgroundOptimize()
+    {
+        xaDs.stopBackgroundOptimize();
+    }
 
     /**
      * Sets the threshold for when a result is considered big enough to skip
@@ -174,7 +218,7 @@ public class LuceneIndexService extends GenericIndexService
     public void setLazySearchResultThreshold( int numberOfHitsBeforeLazyLoading )
     {
         this.lazynessThreshold = numberOfHitsBeforeLazyLoading;
-        xaDs.invalidateCache();
+        xaDs.setCacheMaxResultSize( numberOfHitsBeforeLazyLoading );
     }
 
     /**
@@ -230,7 +274,9 @@ public class LuceneIndexService extends GenericIndexService
     
     /**
      * Returns hits from the index (see {@link #getNodes(String, Object)}).
-     * The result is sorted using {@code sortingOrNull}.
+     * The result is sorted using {@code sortingOrNull}. Results from the
+     * index are otherwise returned in index order, pass in
+     * {@link Sort#RELEVANCE} to get them ordered by relevance.
      * 
      * @param key the index to search in.
      * @param value the value to match hits for.
@@ -270,48 +316,55 @@ public class LuceneIndexService extends GenericIndexService
     protected IndexHits<Node> getNodes( String key, Object value, Object matching,
             Sort sortingOrNull )
     {
-        List<Long> nodeIds = new ArrayList<Long>();
+        LongArray nodeIds = new LongArray();
         LuceneXaConnection con = getReadOnlyConnection();
         LuceneTransaction luceneTx = null;
         if ( con != null )
         {
             luceneTx = getReadOnlyConnection().getLuceneTx();
         }
-        Set<Long> addedNodes = Collections.emptySet();
-        Set<Long> deletedNodes = Collections.emptySet();
+        LongSet addedNodes = LongSet.EMPTY;
+        LongSet deletedNodes = LongSet.EMPTY;
+        boolean txModified = false;
         boolean deleted = false;
         if ( luceneTx != null && luceneTx.hasModifications( key ) )
         {
+            txModified = true;
             addedNodes = luceneTx.getNodesFor( key, value, matching );
-            nodeIds.addAll( addedNodes );
+            nodeIds.addAll( addedNodes.toArray() );
             deletedNodes = luceneTx.getDeletedNodesFor( key, value, matching );
             deleted = luceneTx.getIndexDeleted( key );
         }
-        xaDs.getReadLock();
+        // The added nodes are already in the result
+        LongSet excludedNodes = union( addedNodes, deletedNodes );
         Iterator<Long> nodeIdIterator = null;
         Integer nodeIdIteratorSize = null;
-        IndexSearcherRef searcher = null;
-        boolean isLazy = false;
+        DocToIdIterator lazyNodeIds = null;
+        // Grab the cache generation before the searcher so that a commit
+        // in between makes us skip caching our (possibly stale) result
+        long cacheGeneration = xaDs.getCacheGeneration( key );
+        IndexSearcherRef searcher = xaDs.acquireIndexSearcher( key );
         try
         {
-            searcher = xaDs.getIndexSearcher( key );
             if ( searcher != null && !deleted )
             {
-                LruCache<String, Collection<Long>> cachedNodesMap = xaDs.getFromCache( key );
-                String valueAsString = value.toString();
-                boolean foundInCache = fillFromCache( cachedNodesMap, nodeIds,
-                        key, valueAsString, deletedNodes );
+                Query query = formQuery( key, value, matching );
+                String cacheKey = getCacheKey( value, query, sortingOrNull );
+                boolean foundInCache = cacheKey != null && fillFromCache(
+                        key, nodeIds, cacheKey, excludedNodes );
                 if ( !foundInCache )
                 {
+                    Sort order = sortingOrNull != null ? sortingOrNull :
+                            getDefaultSort( matching );
                     DocToIdIterator searchedNodeIds = searchForNodes( searcher,
-                            key, value, matching, sortingOrNull, deletedNodes );
+                            key, value, query, order, excludedNodes );
                     if ( searchedNodeIds.size() >= this.lazynessThreshold )
                     {
                         // Instantiate a lazy iterator
-                        isLazy = true;
-                        if ( cachedNodesMap != null )
+                        lazyNodeIds = searchedNodeIds;
+                        if ( cacheKey != null )
                         {
-                            cachedNodesMap.remove( valueAsString );
+                            xaDs.removeFromCache( key, cacheKey );
                         }
 
                         Collection<Iterator<Long>> iterators = new ArrayList<Iterator<Long>>();
@@ -322,18 +375,31 @@ public class LuceneIndexService extends GenericIndexService
                     }
                     else
                     {
-                        // Loop through result here (and cache it if possible)
-                        readNodesFromHits( searchedNodeIds, nodeIds,
-                                cachedNodesMap, valueAsString );
+                        // Loop through result here (and cache it if possible,
+                        // but not if the searcher is behind or the result
+                        // excludes nodes modified by this transaction)
+                        long[] readNodeIds = readNodesFromHits(
+                                searchedNodeIds, nodeIds );
+                        if ( cacheKey != null && !txModified &&
+                                xaDs.isCacheEnabled( key ) &&
+                                !xaDs.isSearcherBehind( key ) )
+                        {
+                            xaDs.cacheResult( key, cacheGeneration,
+                                    cacheKey, readNodeIds );
+                        }
                     }
                 }
             }
         }
         finally
         {
-            // The DocToIdIterator closes the IndexSearchRef instance anyways,
-            // or the LazyIterator if it's a lazy one. So no need here.
-            xaDs.releaseReadLock();
+            // The DocToIdIterator holds its own reference to the searcher
+            // which it releases when exhausted, or the LazyIndexHits when
+            // closed if it's a lazy one.
+            if ( searcher != null )
+            {
+                searcher.release();
+            }
         }
 
         if ( nodeIdIterator == null )
@@ -342,56 +408,58 @@ public class LuceneIndexService extends GenericIndexService
             nodeIdIteratorSize = nodeIds.size();
         }
 
+        // No duplicates since the searched and cached ids exclude the ones
+        // added in this transaction
         IndexHits<Node> hits = new SimpleIndexHits<Node>( IteratorUtil.asIterable(
-                FilteringIterator.noDuplicates( instantiateIdToNodeIterator( nodeIdIterator ) ) ), nodeIdIteratorSize );
-        if ( isLazy )
+                instantiateIdToNodeIterator( nodeIdIterator ) ), nodeIdIteratorSize );
+        if ( lazyNodeIds != null )
         {
-            hits = new LazyIndexHits<Node>( hits, searcher );
+            hits = new LazyIndexHits<Node>( hits, lazyNodeIds );
         }
         return hits;
     }
+    
+    private static LongSet union( LongSet first, LongSet second )
+    {
+        if ( first.isEmpty() || second.isEmpty() )
+        {
+            return first.isEmpty() ? second : first;
+        }
+        LongSet union = new LongSet( first.size() + second.size() );
+        union.addAll( first );
+        union.addAll( second );
+        return union;
+    }
 
-    private void readNodesFromHits( DocToIdIterator searchedNodeIds,
-            Collection<Long> nodeIds,
-            LruCache<String, Collection<Long>> cachedNodesMap,
-            String valueAsString )
+    private long[] readNodesFromHits( DocToIdIterator searchedNodeIds,
+            LongArray nodeIds )
     {
-        ArrayList<Long> readNodeIds = new ArrayList<Long>();
+        LongArray readNodeIds = new LongArray( searchedNodeIds.size() );
         while ( searchedNodeIds.hasNext() )
         {
-            Long readNodeId = searchedNodeIds.next();
+            long readNodeId = searchedNodeIds.next();
             nodeIds.add( readNodeId );
             readNodeIds.add( readNodeId );
         }
-        if ( cachedNodesMap != null )
-        {
-            cachedNodesMap.put( valueAsString, readNodeIds );
-        }
+        return readNodeIds.toArray();
     }
 
-    private boolean fillFromCache(
-            LruCache<String, Collection<Long>> cachedNodesMap,
-            List<Long> nodeIds, String key, String valueAsString,
-            Set<Long> deletedNodes )
+    private boolean fillFromCache( String key, LongArray nodeIds,
+            String cacheKey, LongSet excludedNodes )
     {
-        boolean found = false;
-        if ( cachedNodesMap != null )
+        long[] cachedNodes = xaDs.getFromCache( key, cacheKey );
+        if ( cachedNodes == null )
         {
-            Collection<Long> cachedNodes = cachedNodesMap.get( valueAsString );
-            if ( cachedNodes != null )
+            return false;
+        }
+        for ( long cachedNodeId : cachedNodes )
+        {
+            if ( !excludedNodes.contains( cachedNodeId ) )
             {
-                found = true;
-                for ( Long cachedNodeId : cachedNodes )
-                {
-                    if ( deletedNodes == null ||
-                            !deletedNodes.contains( cachedNodeId ) )
-                    {
-                        nodeIds.add( cachedNodeId );
-                    }
-                }
+                nodeIds.add( cachedNodeId );
             }
         }
-        return found;
+        return true;
     }
 
     protected Iterator<Node> instantiateIdToNodeIterator(
@@ -413,22 +481,57 @@ public class LuceneIndexService extends GenericIndexService
         return new TermQuery( new Term( DOC_INDEX_KEY, value.toString() ) );
     }
 
+    /**
+     * Returns the order of a result when the caller doesn't ask for a
+     * sorting. Here it's {@code null}, i.e. index order, since all the
+     * nodes indexed with a value are equally good hits for it.
+     * 
+     * @param matching the kind of matching, see
+     * {@link #formQuery(String, Object, Object)}.
+     * @return the order of an unsorted result, or {@code null} for index
+     * order.
+     */
+    protected Sort getDefaultSort( Object matching )
+    {
+        return null;
+    }
+
+    /**
+     * Returns what the result of a search is cached as. Here it's the value
+     * itself, since a result holds exactly the nodes indexed with the value
+     * and is patched with committed changes as such. Sorted results aren't
+     * cached, since patching appends to a result and would break its order.
+     * 
+     * @param value the value.
+     * @param query the query formed from the value, see
+     * {@link #formQuery(String, Object, Object)}.
+     * @param sortingOrNull the sorting of the result, or {@code null}.
+     * @return the key to cache the result as, or {@code null} if it
+     * mustn't be cached.
+     */
+    protected String getCacheKey( Object value, Query query,
+            Sort sortingOrNull )
+    {
+        return sortingOrNull == null ? value.toString() : null;
+    }
+
     /**
      * Returns a lazy iterator with the node ids.
      */
     private DocToIdIterator searchForNodes( IndexSearcherRef searcher,
-            String key, Object value, Object matching, Sort sortingOrNull, Set<Long> deletedNodes )
+            String key, Object value, Query query, Sort sortingOrNull, LongSet excludedNodes )
     {
-        Query query = formQuery( key, value, matching );
+        searcher.incRef();
         try
         {
-            searcher.incRef();
-            Hits hits = new Hits( searcher.getSearcher(), query, null, sortingOrNull );
-            return new DocToIdIterator( new HitsIterator( hits ), deletedNodes,
-                    searcher );
+            DocIds docIds = DocIdCollector.search( searcher.getSearcher(),
+                    query, sortingOrNull );
+            return new DocToIdIterator( searcher.getSearcher(), docIds,
+                    excludedNodes, searcher );
         }
         catch ( IOException e )
         {
+            searcher.release();
             throw new RuntimeException( "Unable to search for " + key + ","
                                         + value, e );
         }
@@ -457,6 +560,10 @@ public class LuceneIndexService extends GenericIndexService
 
     protected Node getSingleNode( String key, Object value, Object matching )
     {
+        if ( isDefiniteMiss( key, value, matching ) )
+        {
+            return null;
+        }
         IndexHits<Node> hits = null;
         try
         {
@@ -479,6 +586,41 @@ public class LuceneIndexService extends GenericIndexService
         }
     }
 
+    /**
+     * Checks the term filters of the index for {@code key}, so that a
+     * lookup of a value which isn't in the index returns without searching
+     * it. Only exact term queries can be checked and only if this
+     * transaction hasn't modified {@code key}.
+     */
+    private boolean isDefiniteMiss( String key, Object value, Object matching )
+    {
+        LuceneXaConnection con = getReadOnlyConnection();
+        LuceneTransaction luceneTx = con != null ? con.getLuceneTx() : null;
+        if ( luceneTx != null && luceneTx.hasModifications( key ) )
+        {
+            return false;
+        }
+        Query query = formQuery( key, value, matching );
+        if ( !( query instanceof TermQuery ) )
+        {
+            return false;
+        }
+        IndexSearcherRef searcher = xaDs.acquireIndexSearcher( key );
+        if ( searcher == null )
+        {
+            return false;
+        }
+        try
+        {
+            return !xaDs.mightContain( searcher,
+                ( (TermQuery) query ).getTerm() );
+        }
+        finally
+        {
+            searcher.release();
+        }
+    }
+
     @Override
     protected void removeIndexThisTx( Node node, String key, Object value )
     {
@@ -522,6 +664,11 @@ public class LuceneIndexService extends GenericIndexService
         xaDs.close();
     }
 
+    LuceneDataSource getXaDataSource()
+    {
+        return xaDs;
+    }
+
     LuceneXaConnection getConnection()
     {
         return broker.acquireResourceConnection();
@@ -22,7 +22,6 @@ package org.neo4j.index.lucene;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -42,6 +41,7 @@ import org.neo4j.index.ReadOnlyIndexException;
 import org.neo4j.index.impl.GenericIndexService;
 import org.neo4j.index.impl.IdToNodeIterator;
 import org.neo4j.index.impl.SimpleIndexHits;
+import org.neo4j.index.lucene.DocIdCollector.DocIds;
 import org.neo4j.kernel.AbstractGraphDatabase;
 import org.neo4j.kernel.EmbeddedReadOnlyGraphDatabase;
 import org.neo4j.kernel.impl.cache.LruCache;
@@ -240,9 +240,10 @@ public class LuceneReadOnlyIndexService extends GenericIndexService
         try
         {
             IndexSearcher searcher = xaDs.getIndexSearcher( key );
-            Hits hits = new Hits( searcher, query, null, sortingOrNull );
-            return new DocToIdIterator( new HitsIterator( hits ),
-                    Collections.<Long>emptyList(), null );
+            DocIds docIds = DocIdCollector.search( searcher, query,
+                    sortingOrNull );
+            return new DocToIdIterator( searcher, docIds, LongSet.EMPTY,
+                    null );
         }
         catch ( IOException e )
         {
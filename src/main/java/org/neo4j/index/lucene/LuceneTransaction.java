@@ -19,17 +19,15 @@
  */
 package org.neo4j.index.lucene;
 
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.IndexWriter;
 import org.neo4j.graphdb.Node;
 import org.neo4j.index.lucene.LuceneCommand.AddCommand;
 import org.neo4j.index.lucene.LuceneCommand.RemoveCommand;
@@ -46,6 +44,7 @@ class LuceneTransaction extends XaTransaction
 
     private final Map<String,List<LuceneCommand>> commandMap = 
         new HashMap<String,List<LuceneCommand>>();
+    private boolean commandsCoalesced;
 
     LuceneTransaction( int identifier, XaLogicalLog xaLog,
         LuceneDataSource luceneDs )
@@ -127,20 +126,31 @@ class LuceneTransaction extends XaTransaction
         return txRemoved.containsKey( key ) || txIndexed.containsKey( key );
     }
 
-    Set<Long> getDeletedNodesFor( String key, Object value, Object matching )
+    /**
+     * @return the nodes removed from {@code key} with {@code value} in this
+     * transaction, which mustn't be modified by the caller.
+     */
+    LongSet getDeletedNodesFor( String key, Object value, Object matching )
     {
         TxCache keyIndex = txRemoved.get( key );
-        LazyMergedSet<Long> result = null;
-        if ( keyIndex != null )
+        if ( keyIndex == null )
         {
-            result = new LazyMergedSet<Long>();
-            result.add( keyIndex.map.get( value ) );
-            // the 'null' value represents those removed with
-            // removeIndex( Node, String )
-            result.add( keyIndex.map.get( null ) );
+            return LongSet.EMPTY;
         }
-        return result != null && result.get() != null ? result.get() :
-                Collections.<Long>emptySet();
+        LongSet removed = keyIndex.map.get( value );
+        // the 'null' value represents those removed with
+        // removeIndex( Node, String )
+        LongSet removedWithAllValues = keyIndex.map.get( null );
+        if ( removed == null || removedWithAllValues == null )
+        {
+            LongSet result = removed != null ? removed : removedWithAllValues;
+            return result != null ? result : LongSet.EMPTY;
+        }
+        LongSet result = new LongSet( removed.size() +
+            removedWithAllValues.size() );
+        result.addAll( removed );
+        result.addAll( removedWithAllValues );
+        return result;
     }
     
     boolean getIndexDeleted( String key )
@@ -149,39 +159,28 @@ class LuceneTransaction extends XaTransaction
         return keyIndex != null ? keyIndex.all : false;
     }
     
-    Set<Long> getNodesFor( String key, Object value, Object matching )
+    /**
+     * @return the nodes added to {@code key} with {@code value} in this
+     * transaction, which mustn't be modified by the caller.
+     */
+    LongSet getNodesFor( String key, Object value, Object matching )
     {
         TxCache keyIndex = txIndexed.get( key );
         if ( keyIndex != null )
         {
-            Set<Long> nodeIds = keyIndex.map.get( value );
+            LongSet nodeIds = keyIndex.map.get( value );
             if ( nodeIds != null )
             {
                 return nodeIds;
             }
         }
-        return Collections.emptySet();
+        return LongSet.EMPTY;
     }
     
     protected LuceneDataSource getDataSource()
     {
         return this.luceneDs;
     }
-    
-    private void indexWriter( IndexWriter writer, long nodeId, String key,
-        Object value )
-    {
-        Document document = new Document();
-        this.luceneDs.fillDocument( document, nodeId, key, value );
-        try
-        {
-            writer.addDocument( document );
-        }
-        catch ( IOException e )
-        {
-            throw new RuntimeException( e );
-        }
-    }
 
     @Override
     protected void doAddCommand( XaCommand command )
@@ -191,146 +190,329 @@ class LuceneTransaction extends XaTransaction
     @Override
     protected void injectCommand( XaCommand command )
     {
-        queueCommand( ( LuceneCommand ) command );
+        if ( command instanceof LuceneBatchCommand )
+        {
+            for ( LuceneCommand batched :
+                ( ( LuceneBatchCommand ) command ).getCommands() )
+            {
+                queueCommand( batched );
+            }
+        }
+        else
+        {
+            queueCommand( ( LuceneCommand ) command );
+        }
     }
 
     @Override
     protected void doCommit()
     {
-        luceneDs.getWriteLock();
+        // Already done in prepare, unless recovered
+        coalesceCommands();
+        Collection<String> keys = new ArrayList<String>();
+        for ( Map.Entry<String, List<LuceneCommand>> entry :
+            this.commandMap.entrySet() )
+        {
+            if ( !entry.getValue().isEmpty() )
+            {
+                keys.add( entry.getKey() );
+            }
+        }
+        
+        if ( isRecovered() )
+        {
+            commitRecovered( keys );
+            return;
+        }
+        
+        // Only the keys modified in this transaction are locked so that
+        // reads and commits on other keys can go on in the meantime
+        boolean flushGroupCommit = false;
+        long journalEntry = -1;
+        luceneDs.getWriteLock( keys );
         try
         {
-            for ( Map.Entry<String, List<LuceneCommand>> entry :
-                this.commandMap.entrySet() )
+            if ( luceneDs.isGroupCommit() )
             {
-                if ( entry.getValue().isEmpty() )
+                // Before applying, so that the searchers are known to be
+                // behind before any cached result is invalidated
+                flushGroupCommit = luceneDs.addToGroupCommit( keys );
+                Collection<LuceneBatchCommand> batches =
+                    new ArrayList<LuceneBatchCommand>();
+                for ( String key : keys )
                 {
-                    continue;
+                    batches.add( new LuceneBatchCommand( key,
+                        commandMap.get( key ) ) );
                 }
-                boolean isRecovery = false; // entry.getValue().iterator().next().isRecovered();
-                String key = entry.getKey();
-                IndexWriter writer = isRecovery ? luceneDs.getRecoveryIndexWriter( key ) : luceneDs.getIndexWriter( key );
-                for ( LuceneCommand command : entry.getValue() )
+                journalEntry = luceneDs.journalGroupCommit( getCommitTxId(),
+                    batches );
+            }
+            for ( String key : keys )
+            {
+                applyCommands( key, commandMap.get( key ) );
+            }
+            luceneDs.setLastCommittedTxId( getCommitTxId() );
+        }
+        finally
+        {
+            luceneDs.releaseWriteLock( keys );
+        }
+        
+        if ( journalEntry != -1 )
+        {
+            // Outside of the key locks, so that concurrent commits share
+            // the fsync
+            luceneDs.forceGroupCommitJournal( journalEntry );
+        }
+        if ( flushGroupCommit )
+        {
+            luceneDs.flushGroupCommit();
+        }
+    }
+    
+    /**
+     * Recovered transactions don't commit their writers, the writers of all
+     * the recovered keys are committed when recovery is complete, see
+     * {@link LuceneDataSource#recoveryComplete()}. With parallel recovery
+     * the commands are handed to the recovery worker of each key instead of
+     * being applied here. Per key they're still applied in the order of the
+     * transactions since each key always goes to the same worker.
+     */
+    private void commitRecovered( Collection<String> keys )
+    {
+        luceneDs.addRecoveredKeys( keys );
+        for ( final String key : keys )
+        {
+            if ( luceneDs.isAppliedOnDisk( key, getCommitTxId() ) )
+            {
+                // Committed to the index before the crash, replaying it
+                // would only redo the same work
+                continue;
+            }
+            final List<LuceneCommand> commands = commandMap.get( key );
+            Runnable apply = new Runnable()
+            {
+                public void run()
                 {
-                    Long nodeId = command.getNodeId();
-                    String value = command.getValue();
-                    if ( writer == null )
-                    {
-                        writer = isRecovery ? luceneDs.getRecoveryIndexWriter( key ) : luceneDs.getIndexWriter( key );
-                    }
-                    
-                    if ( command instanceof AddCommand )
-                    {
-                        indexWriter( writer, nodeId, key, value );
-                    }
-                    else if ( command instanceof RemoveCommand )
-                    {
-                        if ( luceneDs.deleteDocumentsUsingWriter(
-                            writer, nodeId, key, value ) )
-                        {
-                            luceneDs.closeIndexSearcher( key );
-                            if ( isRecovery )
-                            {
-                                luceneDs.removeRecoveryIndexWriter( key );
-                            }
-                            writer = null;
-                        }
-                    }
-                    else
-                    {
-                        throw new RuntimeException( "Unknown command type " +
-                            command + ", " + command.getClass() );
-                    }
-                    
-                    if ( value != null )
+                    luceneDs.getWriteLock( key );
+                    try
                     {
-                        luceneDs.invalidateCache( key, value );
+                        applyCommands( key, commands );
                     }
-                    else
+                    finally
                     {
-                        luceneDs.invalidateCache( key );
+                        luceneDs.releaseWriteLock( key );
                     }
                 }
-                
-                if ( writer != null && !isRecovery )
-                {
-                    luceneDs.removeWriter( key, writer );
-                }
-                luceneDs.invalidateIndexSearcher( key );
+            };
+            if ( luceneDs.isParallelRecovery() )
+            {
+                luceneDs.submitRecoveredCommands( key, apply );
+            }
+            else
+            {
+                apply.run();
             }
-            luceneDs.setLastCommittedTxId( getCommitTxId() );
         }
-        finally
+        luceneDs.setLastCommittedTxId( getCommitTxId() );
+    }
+    
+    private void applyCommands( String key, List<LuceneCommand> commands )
+    {
+        luceneDs.applyToWriter( key, commands, getCommitTxId() );
+        Set<String> invalidatedValues = new HashSet<String>();
+        boolean invalidateAll = false;
+        for ( LuceneCommand command : commands )
+        {
+            String value = command.getValue();
+            if ( value != null )
+            {
+                invalidatedValues.add( value );
+            }
+            else
+            {
+                invalidateAll = true;
+            }
+        }
+        
+        boolean searcherChanged = false;
+        if ( !luceneDs.isGroupCommit() && !isRecovered() )
+        {
+            luceneDs.commitWriter( key );
+            luceneDs.searcherChanged( key );
+            searcherChanged = true;
+        }
+        else if ( luceneDs.isNearRealTime() )
+        {
+            // The writer is committed at the group boundary, but a
+            // near-real-time searcher can see the changes right away
+            luceneDs.searcherChanged( key );
+            searcherChanged = true;
+        }
+        
+        // Update the cache after the searcher has been refreshed, or marked
+        // as behind, so that a concurrent reader can't put a result from
+        // the old searcher back into the cache. The cached results can only
+        // be patched if the searcher is up to date with the changes,
+        // otherwise they're dropped.
+        if ( searcherChanged && luceneDs.canPatchCache() &&
+            !luceneDs.isSearcherBehind( key ) )
+        {
+            luceneDs.patchCache( key, commands );
+        }
+        else if ( invalidateAll || !luceneDs.canPatchCache() )
         {
-            luceneDs.releaseWriteLock();
+            luceneDs.invalidateCache( key );
+        }
+        else
+        {
+            for ( String value : invalidatedValues )
+            {
+                luceneDs.invalidateCache( key, value );
+            }
         }
     }
 
     @Override
     protected void doPrepare()
     {
+        coalesceCommands();
         for ( Map.Entry<String, List<LuceneCommand>> entry :
             commandMap.entrySet() )
         {
-            for ( LuceneCommand command : entry.getValue() )
+            if ( !entry.getValue().isEmpty() )
             {
-                addCommand( command );
+                addCommand( new LuceneBatchCommand( entry.getKey(),
+                    entry.getValue() ) );
             }
         }
     }
-
-    @Override
-    protected void doRollback()
-    {
-        // TODO Auto-generated method stub
-        commandMap.clear();
-        txIndexed.clear();
-        txRemoved.clear();
-    }
-
-    @Override
-    public boolean isReadOnly()
+    
+    private void coalesceCommands()
     {
-        return commandMap.isEmpty();
+        if ( commandsCoalesced )
+        {
+            return;
+        }
+        for ( Map.Entry<String, List<LuceneCommand>> entry :
+            commandMap.entrySet() )
+        {
+            entry.setValue( coalesce( entry.getValue() ) );
+        }
+        commandsCoalesced = true;
     }
     
-    static class LazyMergedSet<T>
+    /**
+     * Reduces the commands of a key to their net effect, in the order
+     * they're applied: a removal of the entire index, removals of nodes
+     * from all values, removals of node/value pairs and then additions.
+     * Additions which are removed later on in the transaction are dropped
+     * (the removal stays since it also removes what's already in the
+     * index), duplicate additions are collapsed and removals covered by a
+     * wider removal are dropped.
+     * 
+     * @param commands the commands of a key, in the order they were done.
+     * @return the coalesced commands.
+     */
+    static List<LuceneCommand> coalesce( List<LuceneCommand> commands )
     {
-        private Set<T> set;
-        private int count;
-        
-        private void add( Set<T> setOrNull )
+        LuceneCommand removeAll = null;
+        Map<Long, LuceneCommand> nodeRemovals =
+            new LinkedHashMap<Long, LuceneCommand>();
+        Map<Long, Map<String, LuceneCommand>> removals =
+            new LinkedHashMap<Long, Map<String, LuceneCommand>>();
+        Map<Long, Map<String, LuceneCommand>> additions =
+            new LinkedHashMap<Long, Map<String, LuceneCommand>>();
+        for ( LuceneCommand command : commands )
         {
-            if ( setOrNull == null )
+            Long nodeId = command.getNodeId();
+            String value = command.getValue();
+            if ( command instanceof AddCommand )
             {
-                return;
+                put( additions, nodeId, value, command );
             }
-            
-            if ( this.count == 0 )
+            else if ( nodeId == null )
+            {
+                removeAll = command;
+                nodeRemovals.clear();
+                removals.clear();
+                additions.clear();
+            }
+            else if ( value == null )
             {
-                this.set = setOrNull;
+                additions.remove( nodeId );
+                removals.remove( nodeId );
+                if ( removeAll == null )
+                {
+                    nodeRemovals.put( nodeId, command );
+                }
             }
             else
             {
-                if ( count == 1 )
+                Map<String, LuceneCommand> values = additions.get( nodeId );
+                if ( values != null )
                 {
-                    this.set = new HashSet<T>( this.set );
+                    values.remove( value );
+                }
+                if ( removeAll == null && !nodeRemovals.containsKey( nodeId ) )
+                {
+                    put( removals, nodeId, value, command );
                 }
-                this.set.addAll( setOrNull );
             }
-            this.count++;
         }
         
-        private Set<T> get()
+        List<LuceneCommand> result = new ArrayList<LuceneCommand>();
+        if ( removeAll != null )
+        {
+            result.add( removeAll );
+        }
+        result.addAll( nodeRemovals.values() );
+        for ( Map<String, LuceneCommand> values : removals.values() )
+        {
+            result.addAll( values.values() );
+        }
+        for ( Map<String, LuceneCommand> values : additions.values() )
+        {
+            result.addAll( values.values() );
+        }
+        return result;
+    }
+    
+    private static void put( Map<Long, Map<String, LuceneCommand>> map,
+        Long nodeId, String value, LuceneCommand command )
+    {
+        Map<String, LuceneCommand> values = map.get( nodeId );
+        if ( values == null )
+        {
+            values = new LinkedHashMap<String, LuceneCommand>();
+            map.put( nodeId, values );
+        }
+        if ( !values.containsKey( value ) )
         {
-            return this.set;
+            values.put( value, command );
         }
     }
+
+    @Override
+    protected void doRollback()
+    {
+        // TODO Auto-generated method stub
+        commandMap.clear();
+        commandsCoalesced = false;
+        txIndexed.clear();
+        txRemoved.clear();
+    }
+
+    @Override
+    public boolean isReadOnly()
+    {
+        return commandMap.isEmpty();
+    }
     
     private static class TxCache
     {
-        private final Map<Object, Set<Long>> map =
-            new HashMap<Object, Set<Long>>();
+        private final Map<Object, LongSet> map =
+            new HashMap<Object, LongSet>();
         private final Map<Long, Set<Object>> reverseMap =
             new HashMap<Long, Set<Object>>();
         boolean all;
@@ -343,10 +525,10 @@ class LuceneTransaction extends XaTransaction
                 return;
             }
             
-            Set<Long> ids = map.get( value );
+            LongSet ids = map.get( value );
             if ( ids == null )
             {
-                ids = new HashSet<Long>();
+                ids = new LongSet();
                 map.put( value, ids );
             }
             ids.add( nodeId );
@@ -362,7 +544,7 @@ class LuceneTransaction extends XaTransaction
         
         void remove( Long nodeId, Object value )
         {
-            Set<Long> ids = map.get( value );
+            LongSet ids = map.get( value );
             if ( ids != null )
             {
                 ids.remove( nodeId );
@@ -385,7 +567,7 @@ class LuceneTransaction extends XaTransaction
             
             for ( Object value : values.toArray() )
             {
-                Set<Long> ids = map.get( value );
+                LongSet ids = map.get( value );
                 if ( ids != null )
                 {
                     ids.remove( nodeId );
@@ -399,10 +581,5 @@ class LuceneTransaction extends XaTransaction
             map.clear();
             reverseMap.clear();
         }
-        
-        Iterable<Long> getNodesForValue( Object value )
-        {
-            return map.get( value );
-        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.ReaderUtil;
+
+/**
+ * Resolves the node ids of documents without loading the stored documents.
+ * The ids are read from the {@link FieldCache} of each segment, which
+ * Lucene keeps per segment core, so a reopened searcher only loads the
+ * ids of new segments. Not thread safe, use one instance per search.
+ */
+class NodeIdLookup
+{
+    private final IndexReader[] readers;
+    private final int[] docStarts;
+    private final long[][] nodeIds;
+    
+    NodeIdLookup( IndexReader reader )
+    {
+        List<IndexReader> subReaders = new ArrayList<IndexReader>();
+        ReaderUtil.gatherSubReaders( subReaders, reader );
+        this.readers = subReaders.toArray( new IndexReader[subReaders.size()] );
+        this.docStarts = new int[readers.length];
+        int maxDoc = 0;
+        for ( int i = 0; i < readers.length; i++ )
+        {
+            docStarts[i] = maxDoc;
+            maxDoc += readers[i].maxDoc();
+        }
+        this.nodeIds = new long[readers.length][];
+    }
+    
+    /**
+     * @param docId the (top level) document id of a hit.
+     * @return the node id of the document.
+     */
+    long getNodeId( int docId )
+    {
+        int index = readers.length == 1 ? 0 :
+            ReaderUtil.subIndex( docId, docStarts );
+        long[] ids = nodeIds[index];
+        if ( ids == null )
+        {
+            try
+            {
+                ids = FieldCache.DEFAULT.getLongs( readers[index],
+                    LuceneIndexService.DOC_ID_KEY );
+            }
+            catch ( IOException e )
+            {
+                throw new RuntimeException( e );
+            }
+            nodeIds[index] = ids;
+        }
+        return ids[docId - docStarts[index]];
+    }
+}
@@ -19,39 +19,21 @@
  */
 package org.neo4j.index.lucene;
 
-import java.io.IOException;
-
-import org.apache.lucene.document.Document;
-import org.neo4j.helpers.collection.PrefetchingIterator;
-
-class HitsIterator extends PrefetchingIterator<Document>
+/**
+ * Gets notified as the indexes of an optimize are done, see
+ * {@link LuceneIndexBatchInserterImpl#optimize(int, OptimizeProgressListener)}
+ * and {@link LuceneIndexService#optimizeInBackground(int,
+ * OptimizeProgressListener)}. The notifications may come from other
+ * threads than the one which started the optimize.
+ */
+public interface OptimizeProgressListener
 {
-    private final Hits hits;
-    private final int size;
-    private int index;
-    
-    HitsIterator( Hits hits )
-    {
-        this.hits = hits;
-        this.size = hits.length();
-    }
-
-    @Override
-    protected Document fetchNextOrNull()
-    {
-        int i = index++;
-        try
-        {
-            return i < size ? hits.doc( i ) : null;
-        }
-        catch ( IOException e )
-        {
-            throw new RuntimeException( e );
-        }
-    }
-    
-    public int size()
-    {
-        return this.size;
-    }
+    /**
+     * Called when the index for {@code key} has been optimized.
+     * 
+     * @param key the index key which was optimized.
+     * @param optimizedKeys the number of keys optimized so far.
+     * @param totalKeys the number of keys to optimize in total.
+     */
+    void optimized( String key, int optimizedKeys, int totalKeys );
 }
@@ -0,0 +1,532 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the node ids found for the values of the keys which have caching
+ * enabled, see {@link LuceneIndexService#enableCache(String, int)}. Each
+ * key is bounded by its max number of entries and all keys together by an
+ * estimate of the bytes used by the cached ids. When the total goes above
+ * that the least recently used entry of all keys is evicted, so that a
+ * few values with many ids can't blow the heap.
+ * <p>
+ * Committed changes are applied to the cached ids with
+ * {@link #patch(String, String, long, boolean)} and
+ * {@link #removeFromAll(String, long)} so that frequently modified values
+ * don't have to be searched for again after each commit.
+ * <p>
+ * Each key has its own monitor, so lookups and updates of different keys
+ * don't contend. Only the byte count is shared, evictions are done one at
+ * a time outside of the monitors of the keys.
+ */
+class ResultCache
+{
+    // Rough estimates of the object overhead on a 64 bit JVM
+    private static final int ARRAY_OVERHEAD = 16;
+    private static final int STRING_OVERHEAD = 40 + ARRAY_OVERHEAD;
+    private static final int ENTRY_OVERHEAD = 80;
+    
+    private final ConcurrentMap<String,KeyCache> caches =
+        new ConcurrentHashMap<String,KeyCache>();
+    private final ConcurrentMap<String,CacheStatistics> statistics =
+        new ConcurrentHashMap<String,CacheStatistics>();
+    private final long maxBytes;
+    private volatile int maxResultSize = Integer.MAX_VALUE;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final Object evictionLock = new Object();
+    
+    /**
+     * @param maxBytes the max estimated bytes of all cached entries.
+     */
+    ResultCache( long maxBytes )
+    {
+        this.maxBytes = maxBytes;
+    }
+    
+    static long estimateBytes( String value, long[] nodeIds )
+    {
+        return ENTRY_OVERHEAD + STRING_OVERHEAD + value.length() * 2 +
+            ARRAY_OVERHEAD + nodeIds.length * 8L;
+    }
+    
+    long getMaxBytes()
+    {
+        return maxBytes;
+    }
+    
+    long getBytes()
+    {
+        return bytes.get();
+    }
+    
+    /**
+     * Sets the number of ids at which a result is too big to be cached and
+     * drops the cached results which are that big already. Results are
+     * cached smaller than the lazy search result threshold, but a patched
+     * result may grow past it.
+     * 
+     * @param maxResultSize the number of ids at which a result isn't
+     * cached.
+     */
+    void setMaxResultSize( int maxResultSize )
+    {
+        this.maxResultSize = maxResultSize;
+        for ( KeyCache cache : caches.values() )
+        {
+            cache.removeTooLarge( maxResultSize );
+        }
+    }
+    
+    /**
+     * Enables caching for {@code key}, replacing its current cache if it's
+     * already enabled.
+     * 
+     * @param key the index key.
+     * @param maxEntries the max number of values to cache for {@code key}.
+     */
+    void enable( String key, int maxEntries )
+    {
+        disable( key );
+        caches.put( key, new KeyCache( maxEntries, getOrCreateStatistics( key ) ) );
+    }
+    
+    private CacheStatistics getOrCreateStatistics( String key )
+    {
+        CacheStatistics result = statistics.get( key );
+        if ( result == null )
+        {
+            result = new CacheStatistics( key );
+            CacheStatistics existing = statistics.putIfAbsent( key, result );
+            result = existing != null ? existing : result;
+        }
+        return result;
+    }
+    
+    /**
+     * Disables caching for {@code key} and drops its cached entries. The
+     * statistics of {@code key} are kept.
+     * 
+     * @param key the index key.
+     */
+    void disable( String key )
+    {
+        KeyCache cache = caches.remove( key );
+        if ( cache != null )
+        {
+            cache.disable();
+        }
+    }
+    
+    void disableAll()
+    {
+        for ( String key : caches.keySet().toArray( new String[0] ) )
+        {
+            disable( key );
+        }
+    }
+    
+    boolean isEnabled( String key )
+    {
+        return caches.containsKey( key );
+    }
+    
+    /**
+     * @param key the index key.
+     * @return the max number of entries for {@code key}, or {@code null} if
+     * caching isn't enabled for it.
+     */
+    Integer getMaxEntries( String key )
+    {
+        KeyCache cache = caches.get( key );
+        return cache != null ? cache.maxEntries : null;
+    }
+    
+    /**
+     * @param key the index key.
+     * @return the statistics of {@code key}, or {@code null} if caching has
+     * never been enabled for it.
+     */
+    CacheStatistics getStatistics( String key )
+    {
+        return statistics.get( key );
+    }
+    
+    /**
+     * Looks up the cached ids of {@code value} and counts it as a hit or a
+     * miss if caching is enabled for {@code key}.
+     * 
+     * @param key the index key.
+     * @param value the value.
+     * @return the cached ids, or {@code null} if they aren't cached. The
+     * array mustn't be modified.
+     */
+    long[] get( String key, String value )
+    {
+        KeyCache cache = caches.get( key );
+        return cache != null ? cache.get( value ) : null;
+    }
+    
+    /**
+     * Caches {@code nodeIds} for {@code value} if caching is enabled for
+     * {@code key}, evicting the least recently used entries as needed. A
+     * result which alone is bigger than the max bytes isn't cached.
+     * 
+     * @param key the index key.
+     * @param value the value.
+     * @param nodeIds the ids, which mustn't be modified afterwards.
+     */
+    void put( String key, String value, long[] nodeIds )
+    {
+        KeyCache cache = caches.get( key );
+        if ( cache != null && cache.put( value, nodeIds ) )
+        {
+            evictIfNeeded();
+        }
+    }
+    
+    /**
+     * Adds {@code nodeId} to, or removes it from, the cached ids of
+     * {@code value} if they're cached. The cached array is replaced rather
+     * than modified since readers may be iterating over it.
+     * 
+     * @param key the index key.
+     * @param value the value.
+     * @param nodeId the node id.
+     * @param add {@code true} to add {@code nodeId}, {@code false} to
+     * remove it.
+     */
+    void patch( String key, String value, long nodeId, boolean add )
+    {
+        KeyCache cache = caches.get( key );
+        if ( cache != null && cache.patch( value, nodeId, add ) )
+        {
+            evictIfNeeded();
+        }
+    }
+    
+    /**
+     * Removes {@code nodeId} from all cached results of {@code key}.
+     * 
+     * @param key the index key.
+     * @param nodeId the node id.
+     */
+    void removeFromAll( String key, long nodeId )
+    {
+        KeyCache cache = caches.get( key );
+        if ( cache != null )
+        {
+            // Only shrinks, so no eviction is needed
+            cache.removeFromAll( nodeId );
+        }
+    }
+    
+    /**
+     * Drops the cached results of {@code key}, but leaves caching enabled.
+     * 
+     * @param key the index key.
+     */
+    void clear( String key )
+    {
+        KeyCache cache = caches.get( key );
+        if ( cache != null )
+        {
+            cache.clear();
+        }
+    }
+    
+    void remove( String key, String value )
+    {
+        KeyCache cache = caches.get( key );
+        if ( cache != null )
+        {
+            cache.remove( value );
+        }
+    }
+    
+    private static int indexOf( long[] nodeIds, long nodeId )
+    {
+        for ( int i = 0; i < nodeIds.length; i++ )
+        {
+            if ( nodeIds[i] == nodeId )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static long[] append( long[] nodeIds, long nodeId )
+    {
+        long[] result = Arrays.copyOf( nodeIds, nodeIds.length + 1 );
+        result[nodeIds.length] = nodeId;
+        return result;
+    }
+    
+    private static long[] remove( long[] nodeIds, int index )
+    {
+        long[] result = new long[nodeIds.length - 1];
+        System.arraycopy( nodeIds, 0, result, 0, index );
+        System.arraycopy( nodeIds, index + 1, result, index,
+            result.length - index );
+        return result;
+    }
+    
+    /**
+     * Evicts the least recently used entries of all keys until the total
+     * is within the max bytes. Must be called without holding the monitor
+     * of any key, since it takes them one at a time.
+     */
+    private void evictIfNeeded()
+    {
+        if ( bytes.get() <= maxBytes )
+        {
+            return;
+        }
+        synchronized ( evictionLock )
+        {
+            while ( bytes.get() > maxBytes )
+            {
+                if ( !evictLeastRecentlyUsed() )
+                {
+                    // Nothing left to evict, the rest is being removed
+                    return;
+                }
+            }
+        }
+    }
+    
+    private boolean evictLeastRecentlyUsed()
+    {
+        // The eldest entry of each key is its least recently used one, so
+        // only those have to be compared. There are few keys with caching
+        // enabled so a scan is cheaper than keeping a global order. Keys
+        // may be used while scanning, so the order is approximate.
+        KeyCache oldest = null;
+        long oldestUse = Long.MAX_VALUE;
+        for ( KeyCache cache : caches.values() )
+        {
+            long eldestUse = cache.eldestUse();
+            if ( eldestUse < oldestUse )
+            {
+                oldest = cache;
+                oldestUse = eldestUse;
+            }
+        }
+        if ( oldest == null )
+        {
+            return false;
+        }
+        // May have been emptied since, then the next scan picks another
+        oldest.evictEldest();
+        return true;
+    }
+    
+    private static class CachedResult
+    {
+        private final long[] nodeIds;
+        private final long bytes;
+        private long lastUsed;
+        
+        CachedResult( long[] nodeIds, long bytes, long lastUsed )
+        {
+            this.nodeIds = nodeIds;
+            this.bytes = bytes;
+            this.lastUsed = lastUsed;
+        }
+    }
+    
+    /**
+     * The cached results of one key, guarded by its own monitor.
+     */
+    private class KeyCache
+    {
+        private final int maxEntries;
+        private final CacheStatistics statistics;
+        private final LinkedHashMap<String,CachedResult> entries =
+            new LinkedHashMap<String,CachedResult>( 16, 0.75f, true );
+        // Set when replaced or disabled, so that a caller which got hold of
+        // it just before that can't add to the byte count
+        private boolean disabled;
+        
+        KeyCache( int maxEntries, CacheStatistics statistics )
+        {
+            this.maxEntries = maxEntries;
+            this.statistics = statistics;
+        }
+        
+        synchronized long[] get( String value )
+        {
+            CachedResult result = entries.get( value );
+            if ( result == null )
+            {
+                statistics.miss();
+                return null;
+            }
+            statistics.hit();
+            result.lastUsed = clock.incrementAndGet();
+            return result.nodeIds;
+        }
+        
+        /**
+         * @return whether or not the byte count grew, i.e. if an eviction
+         * may be needed.
+         */
+        synchronized boolean put( String value, long[] nodeIds )
+        {
+            remove( value, false );
+            return add( value, nodeIds, clock.incrementAndGet() );
+        }
+        
+        private boolean add( String value, long[] nodeIds, long lastUsed )
+        {
+            long entryBytes = estimateBytes( value, nodeIds );
+            if ( disabled || entryBytes > maxBytes ||
+                nodeIds.length >= maxResultSize )
+            {
+                return false;
+            }
+            entries.put( value, new CachedResult( nodeIds, entryBytes,
+                lastUsed ) );
+            bytes.addAndGet( entryBytes );
+            statistics.added( entryBytes );
+            if ( entries.size() > maxEntries )
+            {
+                evictEldest();
+            }
+            return true;
+        }
+        
+        synchronized boolean patch( String value, long nodeId, boolean add )
+        {
+            CachedResult result = entries.get( value );
+            if ( result == null )
+            {
+                return false;
+            }
+            int index = indexOf( result.nodeIds, nodeId );
+            if ( add == ( index != -1 ) )
+            {
+                return false;
+            }
+            long[] nodeIds = add ? append( result.nodeIds, nodeId ) :
+                ResultCache.remove( result.nodeIds, index );
+            remove( value, false );
+            return add( value, nodeIds, clock.incrementAndGet() );
+        }
+        
+        synchronized void removeFromAll( long nodeId )
+        {
+            for ( Map.Entry<String,CachedResult> entry : entries.entrySet() )
+            {
+                CachedResult result = entry.getValue();
+                int index = indexOf( result.nodeIds, nodeId );
+                if ( index != -1 )
+                {
+                    long[] nodeIds = ResultCache.remove( result.nodeIds, index );
+                    long entryBytes = estimateBytes( entry.getKey(), nodeIds );
+                    bytes.addAndGet( entryBytes - result.bytes );
+                    statistics.resized( result.bytes, entryBytes );
+                    entry.setValue( new CachedResult( nodeIds, entryBytes,
+                        result.lastUsed ) );
+                }
+            }
+        }
+        
+        /**
+         * @return when the least recently used entry was last used, or
+         * {@link Long#MAX_VALUE} if there are no entries.
+         */
+        synchronized long eldestUse()
+        {
+            Iterator<CachedResult> iterator = entries.values().iterator();
+            return iterator.hasNext() ? iterator.next().lastUsed :
+                Long.MAX_VALUE;
+        }
+        
+        synchronized void evictEldest()
+        {
+            Iterator<CachedResult> iterator = entries.values().iterator();
+            if ( iterator.hasNext() )
+            {
+                CachedResult eldest = iterator.next();
+                iterator.remove();
+                removed( eldest, true );
+            }
+        }
+        
+        synchronized void remove( String value )
+        {
+            remove( value, false );
+        }
+        
+        private void remove( String value, boolean evicted )
+        {
+            CachedResult result = entries.remove( value );
+            if ( result != null )
+            {
+                removed( result, evicted );
+            }
+        }
+        
+        private void removed( CachedResult result, boolean evicted )
+        {
+            bytes.addAndGet( -result.bytes );
+            statistics.removed( result.bytes, evicted );
+        }
+        
+        synchronized void removeTooLarge( int maxResultSize )
+        {
+            Iterator<CachedResult> iterator = entries.values().iterator();
+            while ( iterator.hasNext() )
+            {
+                CachedResult result = iterator.next();
+                if ( result.nodeIds.length >= maxResultSize )
+                {
+                    iterator.remove();
+                    removed( result, false );
+                }
+            }
+        }
+        
+        synchronized void clear()
+        {
+            for ( CachedResult result : entries.values() )
+            {
+                removed( result, false );
+            }
+            entries.clear();
+        }
+        
+        synchronized void disable()
+        {
+            disabled = true;
+            clear();
+        }
+    }
+}
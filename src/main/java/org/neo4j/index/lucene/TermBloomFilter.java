@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+
+/**
+ * A Bloom filter of the terms of one field in one index segment. It can
+ * tell for sure that a term isn't in the segment, so that a lookup of a
+ * value which doesn't exist (the common case for "does this id already
+ * exist" checks) doesn't have to go to the term dictionary of each
+ * segment. Segments are immutable, apart from deletions which don't
+ * remove terms, so a filter stays valid for as long as its segment lives.
+ * Thread safe once built.
+ */
+class TermBloomFilter
+{
+    // About 1% false positives
+    private static final int BITS_PER_TERM = 10;
+    private static final int HASHES = 7;
+    
+    private final long[] bits;
+    private final int numBits;
+    
+    private TermBloomFilter( long numTerms )
+    {
+        long wanted = ( numTerms * BITS_PER_TERM + 63 ) / 64;
+        int words = (int) Math.max( 1,
+            Math.min( wanted, Integer.MAX_VALUE / 64 ) );
+        this.bits = new long[words];
+        this.numBits = words * 64;
+    }
+    
+    /**
+     * Builds a filter of the terms of {@code field} in {@code segment}.
+     * 
+     * @param segment the segment, i.e. an atomic reader.
+     * @param field the field.
+     * @return the filter.
+     * @throws IOException if the terms couldn't be read.
+     */
+    static TermBloomFilter build( IndexReader segment, String field )
+        throws IOException
+    {
+        return build( segment, field, segment.getUniqueTermCount() );
+    }
+    
+    /**
+     * Builds a filter of the terms of {@code field} in {@code segment} in
+     * one pass over them, sized to {@code maxTerms} rather than to the
+     * exact number of terms of {@code field}.
+     * 
+     * @param segment the segment, i.e. an atomic reader.
+     * @param field the field.
+     * @param maxTerms the max number of terms of {@code field}, e.g. the
+     * number of terms of all fields in {@code segment}.
+     * @return the filter.
+     * @throws IOException if the terms couldn't be read.
+     */
+    static TermBloomFilter build( IndexReader segment, String field,
+        long maxTerms ) throws IOException
+    {
+        TermBloomFilter filter = new TermBloomFilter( maxTerms );
+        TermEnum terms = segment.terms( new Term( field, "" ) );
+        try
+        {
+            do
+            {
+                Term term = terms.term();
+                if ( term == null || !term.field().equals( field ) )
+                {
+                    break;
+                }
+                filter.add( hash( term.text() ) );
+            }
+            while ( terms.next() );
+        }
+        finally
+        {
+            terms.close();
+        }
+        return filter;
+    }
+    
+    private static long hash( String text )
+    {
+        // 64 bit FNV-1a, split into two hashes for double hashing
+        long hash = 0xcbf29ce484222325L;
+        for ( int i = 0; i < text.length(); i++ )
+        {
+            hash ^= text.charAt( i );
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+    
+    private void add( long hash )
+    {
+        int hash1 = (int) hash;
+        int hash2 = (int) ( hash >>> 32 );
+        for ( int i = 0; i < HASHES; i++ )
+        {
+            int bit = ( ( hash1 + i * hash2 ) & Integer.MAX_VALUE ) % numBits;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+    
+    /**
+     * @param text the text of a term in the field of this filter.
+     * @return {@code false} if the term definitely isn't in the segment,
+     * {@code true} if it might be.
+     */
+    boolean mightContain( String text )
+    {
+        long hash = hash( text );
+        int hash1 = (int) hash;
+        int hash2 = (int) ( hash >>> 32 );
+        for ( int i = 0; i < HASHES; i++ )
+        {
+            int bit = ( ( hash1 + i * hash2 ) & Integer.MAX_VALUE ) % numBits;
+            if ( ( bits[bit >>> 6] & ( 1L << bit ) ) == 0 )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
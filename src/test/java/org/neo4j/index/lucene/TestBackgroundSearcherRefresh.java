@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.index.IndexService;
+import org.neo4j.index.Neo4jTestCase;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+/**
+ * Don't extend Neo4jTestCase since these tests needs their own configuration
+ * of the db.
+ */
+public class TestBackgroundSearcherRefresh
+{
+    private GraphDatabaseService graphDb;
+    private IndexService index;
+    
+    @Before
+    public void setUpDb()
+    {
+        String path = "target/var/searcher-refresh";
+        Neo4jTestCase.deleteFileOrDirectory( new File( path ) );
+        graphDb = new EmbeddedGraphDatabase( path, stringMap(
+            LuceneDataSource.SEARCHER_REFRESH_INTERVAL, "50" ) );
+        index = new LuceneIndexService( graphDb );
+    }
+    
+    @After
+    public void tearDownDb()
+    {
+        index.shutdown();
+        graphDb.shutdown();
+    }
+    
+    @Test
+    public void testCommittedEntriesBecomeVisible() throws Exception
+    {
+        Node node;
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            node = graphDb.createNode();
+            index.index( node, "key", "value" );
+            // A transaction sees its own changes right away
+            assertEquals( node, index.getSingleNode( "key", "value" ) );
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        
+        long end = System.currentTimeMillis() + 5000;
+        Node found = null;
+        while ( found == null && System.currentTimeMillis() < end )
+        {
+            found = getSingleNode( "key", "value" );
+            if ( found == null )
+            {
+                Thread.sleep( 10 );
+            }
+        }
+        assertEquals( node, found );
+        
+        // Removals are picked up by the refresher as well
+        tx = graphDb.beginTx();
+        try
+        {
+            index.removeIndex( node, "key", "value" );
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        Thread.sleep( 500 );
+        assertEquals( null, getSingleNode( "key", "value" ) );
+    }
+    
+    private Node getSingleNode( String key, Object value )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            return index.getSingleNode( key, value );
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+}
@@ -22,8 +22,12 @@ package org.neo4j.index.lucene;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.neo4j.index.Neo4jTestCase.asCollection;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import org.junit.After;
@@ -95,6 +99,19 @@ public class TestBatchInsert
             "abcdefghijklmnop" ).iterator().hasNext() );
     }
 
+    @Test
+    public void testMultiThreadedFulltextBatchInsert()
+    {
+        index = new LuceneFulltextIndexBatchInserter( inserter, 4 );
+        for ( int i = 0; i < 10000; i++ )
+        {
+            index.index( i, "text", "Some Words and word" + i +
+                " for the analyzer" );
+        }
+        assertEquals( 10000, index.getNodes( "text", "words" ).size() );
+        assertEquals( 1234, index.getSingleNode( "text", "WORD1234" ) );
+    }
+
     @Test
     public void testMoreFulltextBatchInsert()
     {
@@ -157,6 +174,155 @@ public class TestBatchInsert
         }
     }
 
+    @Test
+    public void testMultiThreadedBatchInsert()
+    {
+        // See TestBatchInsertPerformance for the timing
+        int count = 2000;
+        index = new LuceneIndexBatchInserterImpl( inserter, 4 );
+        for ( int i = 0; i < count; i++ )
+        {
+            index.index( i, "multi", i );
+            index.index( i, "multi-all", "all" );
+        }
+        index.flush();
+        for ( int i = 0; i < count; i++ )
+        {
+            assertEquals( i, index.getSingleNode( "multi", i ) );
+        }
+        assertEquals( count, index.getNodes( "multi-all", "all" ).size() );
+    }
+    
+    @Test
+    public void testBulkIndex()
+    {
+        index = new LuceneIndexBatchInserterImpl( inserter, 2 );
+        long[] nodes = new long[1000];
+        Object[] values = new Object[1000];
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            Map<String,Object> properties = new HashMap<String,Object>();
+            if ( i % 2 == 0 )
+            {
+                properties.put( "name", "name" + i );
+            }
+            nodes[i] = inserter.createNode( properties );
+            values[i] = "value" + i;
+        }
+        index.index( nodes, "bulk", values );
+        index.indexProperty( "name", "name", nodes[0],
+            nodes[nodes.length - 1] + 1 );
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            assertEquals( nodes[i], index.getSingleNode( "bulk", "value" + i ) );
+            assertEquals( i % 2 == 0 ? nodes[i] : -1,
+                index.getSingleNode( "name", "name" + i ) );
+        }
+    }
+    
+    @Test
+    public void testDeduplicatingInsert()
+    {
+        index = new LuceneIndexBatchInserterImpl( inserter );
+        int count = LuceneIndexBatchInserterImpl.MAX_RECENT_WRITES * 2;
+        for ( int i = 0; i < count * 2; i++ )
+        {
+            String value = "value" + ( i % count );
+            long existing = index.getSingleNode( "dedupe", value );
+            if ( i < count )
+            {
+                assertEquals( -1, existing );
+                index.index( i, "dedupe", value );
+            }
+            else
+            {
+                assertEquals( i - count, existing );
+            }
+        }
+        index.index( count, "dedupe", "value0" );
+        assertEquals( 2, index.getNodes( "dedupe", "value0" ).size() );
+    }
+    
+    @Test
+    public void testParallelOptimizeReportsProgress()
+    {
+        index = new LuceneIndexBatchInserterImpl( inserter );
+        index.setOptimizeThreads( 2 );
+        for ( int i = 0; i < 100; i++ )
+        {
+            index.index( i, "key" + ( i % 4 ), i );
+        }
+        final AtomicInteger optimized = new AtomicInteger();
+        index.optimize( 2, new OptimizeProgressListener()
+        {
+            public void optimized( String key, int optimizedKeys, int totalKeys )
+            {
+                assertEquals( 4, totalKeys );
+                optimized.incrementAndGet();
+            }
+        } );
+        assertEquals( 4, optimized.get() );
+        assertEquals( 5, index.getSingleNode( "key1", 5 ) );
+        
+        index.setShutdownOptimize( LuceneIndexBatchInserterImpl.OPTIMIZE_NONE,
+            null );
+        index.shutdown();
+        index = null;
+    }
+    
+    @Test
+    public void testRemoveIndex()
+    {
+        index = new LuceneIndexBatchInserterImpl( inserter );
+        for ( int i = 0; i < 10; i++ )
+        {
+            index.index( i, "remove", "value" );
+            index.index( i, "remove", "other" );
+        }
+        assertEquals( 10, index.getNodes( "remove", "value" ).size() );
+        index.removeIndex( 0, "remove", "value" );
+        index.removeIndex( 1, "remove" );
+        assertEquals( 8, index.getNodes( "remove", "value" ).size() );
+        assertEquals( 9, index.getNodes( "remove", "other" ).size() );
+        
+        index.index( 0, "remove", "value" );
+        index.removeIndex( 2, "remove", "value" );
+        assertEquals( 8, index.getNodes( "remove", "value" ).size() );
+        assertTrue( asCollection( index.getNodes( "remove", "value" ) ).contains( 0L ) );
+        assertFalse( asCollection( index.getNodes( "remove", "value" ) ).contains( 2L ) );
+        index.optimize();
+        assertEquals( 8, index.getNodes( "remove", "value" ).size() );
+        
+        index.getIndexService().removeIndex( "remove" );
+        assertEquals( 0, index.getNodes( "remove", "value" ).size() );
+    }
+    
+    @Test
+    public void testInterleavedRemovalsAreBuffered()
+    {
+        index = new LuceneIndexBatchInserterImpl( inserter, 4 );
+        int count = 100;
+        for ( int i = 0; i < count; i++ )
+        {
+            index.index( i, "interleaved", "value" );
+        }
+        for ( int i = 0; i < count / 2; i++ )
+        {
+            index.removeIndex( i, "interleaved", "value" );
+            index.index( count + i, "interleaved", "value" );
+        }
+        // Other nodes don't apply the removals
+        assertEquals( count / 2, index.getPendingDeleteCount( "interleaved" ) );
+        
+        // A removed entry added again applies them first
+        index.index( 0, "interleaved", "value" );
+        assertEquals( 0, index.getPendingDeleteCount( "interleaved" ) );
+        index.flush();
+        assertEquals( count + 1, index.getNodes( "interleaved", "value" ).size() );
+        assertTrue( asCollection( index.getNodes( "interleaved", "value" ) ).contains( 0L ) );
+        assertFalse( asCollection( index.getNodes( "interleaved", "value" ) ).contains( 1L ) );
+    }
+    
     @Test
     public void testShutdownStartup()
     {
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.index.Neo4jTestCase;
+import org.neo4j.kernel.impl.batchinsert.BatchInserterImpl;
+
+/**
+ * Compares the time it takes to batch insert entries on the calling thread
+ * and with several indexing threads, see
+ * {@link LuceneIndexBatchInserterImpl#LuceneIndexBatchInserterImpl(
+ * org.neo4j.kernel.impl.batchinsert.BatchInserter, int)}.
+ * 
+ * This test is abstract because it takes a while to run. It belongs in a QA
+ * project instead really...
+ */
+public abstract class TestBatchInsertPerformance
+{
+    private static final String PATH = "target/var/batch-insert-performance";
+    private static final int COUNT = 100000;
+    private static final int THREADS = 4;
+    
+    private BatchInserterImpl inserter;
+    private LuceneIndexBatchInserterImpl index;
+    
+    @Before
+    public void setUpBatchInserter()
+    {
+        Neo4jTestCase.deleteFileOrDirectory( new File( PATH ) );
+        inserter = new BatchInserterImpl( PATH );
+    }
+    
+    @After
+    public void tearDownBatchInserter()
+    {
+        if ( index != null )
+        {
+            index.shutdown();
+        }
+        inserter.shutdown();
+    }
+    
+    @Test
+    public void testMultiThreadedBatchInsert()
+    {
+        index = new LuceneIndexBatchInserterImpl( inserter );
+        long singleThreadedTime = timeIndexing( "single" );
+        index.shutdown();
+        
+        index = new LuceneIndexBatchInserterImpl( inserter, THREADS );
+        long multiThreadedTime = timeIndexing( "multi" );
+        System.out.println( "Indexed " + COUNT + " entries in " +
+            singleThreadedTime + "ms on the calling thread and in " +
+            multiThreadedTime + "ms with " + THREADS + " indexing threads" );
+        assertEquals( COUNT, index.getNodes( "multi-all", "all" ).size() );
+    }
+    
+    private long timeIndexing( String key )
+    {
+        long time = System.currentTimeMillis();
+        for ( int i = 0; i < COUNT; i++ )
+        {
+            index.index( i, key, i );
+            index.index( i, key + "-all", "all" );
+        }
+        index.flush();
+        return System.currentTimeMillis() - time;
+    }
+}
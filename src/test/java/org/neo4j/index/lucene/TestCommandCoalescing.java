@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.neo4j.index.lucene.LuceneCommand.AddCommand;
+import org.neo4j.index.lucene.LuceneCommand.RemoveCommand;
+
+public class TestCommandCoalescing
+{
+    private static LuceneCommand add( long nodeId, String value )
+    {
+        return new AddCommand( nodeId, "key", value );
+    }
+    
+    private static LuceneCommand remove( Long nodeId, String value )
+    {
+        return new RemoveCommand( nodeId, "key", value );
+    }
+    
+    private static List<LuceneCommand> coalesce( LuceneCommand... commands )
+    {
+        return LuceneTransaction.coalesce(
+            new ArrayList<LuceneCommand>( Arrays.asList( commands ) ) );
+    }
+    
+    private static void assertCommands( List<LuceneCommand> actual,
+        LuceneCommand... expected )
+    {
+        assertEquals( Arrays.asList( expected ), actual );
+    }
+    
+    @Test
+    public void testDuplicateAddsAreCollapsed()
+    {
+        LuceneCommand first = add( 1, "a" );
+        LuceneCommand other = add( 2, "a" );
+        assertCommands( coalesce( first, add( 1, "a" ), other, add( 1, "a" ) ),
+            first, other );
+    }
+    
+    @Test
+    public void testAddFollowedByRemoveLeavesTheRemove()
+    {
+        // The removal must stay since it also removes what's in the index
+        LuceneCommand removal = remove( 1L, "a" );
+        assertCommands( coalesce( add( 1, "a" ), removal ), removal );
+    }
+    
+    @Test
+    public void testRemovalsAreAppliedBeforeAdds()
+    {
+        LuceneCommand addition = add( 1, "a" );
+        LuceneCommand removal = remove( 2L, "b" );
+        assertCommands( coalesce( addition, removal ), removal, addition );
+    }
+    
+    @Test
+    public void testNodeRemovalDropsEarlierCommandsForTheNode()
+    {
+        LuceneCommand nodeRemoval = remove( 1L, null );
+        LuceneCommand other = add( 2, "a" );
+        LuceneCommand readded = add( 1, "c" );
+        assertCommands( coalesce( add( 1, "a" ), remove( 1L, "b" ), other,
+            nodeRemoval, readded, remove( 1L, "d" ) ),
+            nodeRemoval, other, readded );
+    }
+    
+    @Test
+    public void testRemoveAllDropsEarlierCommands()
+    {
+        LuceneCommand removeAll = remove( null, null );
+        LuceneCommand addition = add( 3, "c" );
+        List<LuceneCommand> result = coalesce( add( 1, "a" ),
+            remove( 2L, null ), remove( 1L, "b" ), removeAll, addition,
+            remove( 4L, "d" ) );
+        assertCommands( result, removeAll, addition );
+        
+        // Coalescing coalesced commands doesn't change them
+        assertCommands( LuceneTransaction.coalesce( result ), removeAll,
+            addition );
+        assertTrue( coalesce().isEmpty() );
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+import org.neo4j.index.lucene.DocIdCollector.DocIds;
+
+public class TestDocIdCollector
+{
+    @Test
+    public void testSortsAllHits() throws Exception
+    {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter writer = newWriter( dir );
+        int count = 1000;
+        for ( int i = 0; i < count; i++ )
+        {
+            writer.addDocument( document( "value", i ) );
+        }
+        writer.close();
+        
+        IndexSearcher searcher = new IndexSearcher( dir, true );
+        try
+        {
+            DocIds docIds = DocIdCollector.search( searcher,
+                new TermQuery( new Term( "field", "value" ) ),
+                new Sort( new SortField( "order", SortField.INT, true ) ) );
+            assertEquals( count, docIds.size() );
+            for ( int i = 0; i < count; i++ )
+            {
+                assertEquals( count - 1 - i, docIds.get( i ) );
+            }
+            assertEquals( 0, DocIdCollector.search( searcher,
+                new TermQuery( new Term( "field", "other" ) ),
+                Sort.RELEVANCE ).size() );
+        }
+        finally
+        {
+            searcher.close();
+        }
+    }
+    
+    @Test
+    public void testRelevanceOrder() throws Exception
+    {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter writer = newWriter( dir );
+        writer.addDocument( document( "a long value with the word in it", 0 ) );
+        writer.addDocument( document( "word", 1 ) );
+        writer.close();
+        
+        IndexSearcher searcher = new IndexSearcher( dir, true );
+        try
+        {
+            TermQuery query = new TermQuery( new Term( "field", "word" ) );
+            DocIds docIds = DocIdCollector.search( searcher, query,
+                Sort.RELEVANCE );
+            assertEquals( 2, docIds.size() );
+            assertEquals( 1, docIds.get( 0 ) );
+            assertEquals( 0, docIds.get( 1 ) );
+            
+            // Unsorted is index order
+            docIds = DocIdCollector.search( searcher, query, null );
+            assertEquals( 0, docIds.get( 0 ) );
+            assertEquals( 1, docIds.get( 1 ) );
+        }
+        finally
+        {
+            searcher.close();
+        }
+    }
+    
+    private IndexWriter newWriter( RAMDirectory dir ) throws Exception
+    {
+        return new IndexWriter( dir, new IndexWriterConfig(
+            LuceneDataSource.CURRENT_VERSION,
+            new WhitespaceAnalyzer( LuceneDataSource.CURRENT_VERSION ) ) );
+    }
+    
+    private Document document( String value, int order )
+    {
+        Document document = new Document();
+        document.add( new Field( "field", value, Field.Store.NO,
+            Field.Index.ANALYZED ) );
+        document.add( new Field( "order", String.valueOf( order ),
+            Field.Store.NO, Field.Index.NOT_ANALYZED ) );
+        return document;
+    }
+}
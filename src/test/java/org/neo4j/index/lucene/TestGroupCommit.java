@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+import static org.neo4j.index.Neo4jTestCase.assertCollection;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.index.IndexService;
+import org.neo4j.index.Neo4jTestCase;
+import org.neo4j.index.lucene.LuceneCommand.AddCommand;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+/**
+ * Don't extend Neo4jTestCase since these tests needs their own configuration
+ * of the db.
+ */
+public class TestGroupCommit
+{
+    private GraphDatabaseService graphDb;
+    private IndexService index;
+    
+    private String getDbPath()
+    {
+        return "target/var/group-commit";
+    }
+    
+    @Before
+    public void setUpDb()
+    {
+        Neo4jTestCase.deleteFileOrDirectory( new File( getDbPath() ) );
+        startDb();
+    }
+    
+    private void startDb()
+    {
+        startDb( stringMap(
+            LuceneDataSource.GROUP_COMMIT, "true",
+            LuceneDataSource.GROUP_COMMIT_SIZE, "5",
+            LuceneDataSource.GROUP_COMMIT_WINDOW, "50" ) );
+    }
+    
+    private void startDb( Map<String, String> config )
+    {
+        graphDb = new EmbeddedGraphDatabase( getDbPath(), config );
+        index = new LuceneIndexService( graphDb );
+    }
+    
+    private void stopDb()
+    {
+        index.shutdown();
+        graphDb.shutdown();
+    }
+    
+    @After
+    public void tearDownDb()
+    {
+        stopDb();
+    }
+    
+    @Test
+    public void testGroupCommittedEntriesBecomeVisible()
+    {
+        List<Node> nodes = new ArrayList<Node>();
+        for ( int i = 0; i < 12; i++ )
+        {
+            Transaction tx = graphDb.beginTx();
+            try
+            {
+                Node node = graphDb.createNode();
+                index.index( node, "key", "value" );
+                nodes.add( node );
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+        }
+        
+        // Flush the last (incomplete) group
+        ( (LuceneIndexService) index ).getXaDataSource().flushGroupCommit();
+        Node[] expected = nodes.toArray( new Node[ 0 ] );
+        assertNodes( expected );
+        
+        stopDb();
+        startDb();
+        assertNodes( expected );
+    }
+    
+    @Test
+    public void testNearRealTimeEntriesAreVisibleBeforeGroupFlush()
+    {
+        stopDb();
+        // A group which won't be flushed during this test
+        startDb( stringMap(
+            LuceneDataSource.GROUP_COMMIT, "true",
+            LuceneDataSource.NEAR_REAL_TIME, "true",
+            LuceneDataSource.GROUP_COMMIT_SIZE, "1000",
+            LuceneDataSource.GROUP_COMMIT_WINDOW, "600000" ) );
+        
+        List<Node> nodes = new ArrayList<Node>();
+        for ( int i = 0; i < 3; i++ )
+        {
+            Transaction tx = graphDb.beginTx();
+            try
+            {
+                Node node = graphDb.createNode();
+                index.index( node, "key", "value" );
+                nodes.add( node );
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+            assertNodes( nodes.toArray( new Node[ 0 ] ) );
+        }
+        
+        // Shutdown flushes the group
+        stopDb();
+        startDb();
+        assertNodes( nodes.toArray( new Node[ 0 ] ) );
+    }
+    
+    @Test
+    public void testNearRealTimeReadsDontOpenWriters()
+    {
+        stopDb();
+        startDb( stringMap( LuceneDataSource.NEAR_REAL_TIME, "true" ) );
+        LuceneDataSource dataSource =
+            ( (LuceneIndexService) index ).getXaDataSource();
+        assertTrue( dataSource.isGroupCommit() );
+        
+        Node node;
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            node = graphDb.createNode();
+            index.index( node, "key", "value" );
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        assertNodes( node );
+        
+        // The writers are closed at shutdown, a read mustn't open one
+        stopDb();
+        startDb( stringMap( LuceneDataSource.NEAR_REAL_TIME, "true" ) );
+        dataSource = ( (LuceneIndexService) index ).getXaDataSource();
+        assertNodes( graphDb.getNodeById( node.getId() ) );
+        assertFalse( dataSource.isWriterOpen( "key" ) );
+        
+        // Entries committed after the searcher was opened from the
+        // directory are still seen right away
+        Node other;
+        tx = graphDb.beginTx();
+        try
+        {
+            other = graphDb.createNode();
+            index.index( other, "key", "value" );
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        assertNodes( graphDb.getNodeById( node.getId() ), other );
+    }
+    
+    @Test
+    public void testJournaledEntriesAreReplayedAtStartup() throws Exception
+    {
+        Node node;
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            node = graphDb.createNode();
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        stopDb();
+        
+        // As if the JVM died after the transaction was journaled, but
+        // before its group was flushed
+        List<LuceneCommand> commands = new ArrayList<LuceneCommand>();
+        commands.add( new AddCommand( node.getId(), "key", "value" ) );
+        List<LuceneBatchCommand> batches = new ArrayList<LuceneBatchCommand>();
+        batches.add( new LuceneBatchCommand( "key", commands ) );
+        GroupCommitJournal journal = new GroupCommitJournal(
+            new File( getDbPath(), LuceneIndexService.DIR_NAME ) );
+        journal.append( 1, batches );
+        journal.close();
+        
+        startDb();
+        assertNodes( graphDb.getNodeById( node.getId() ) );
+    }
+    
+    private void assertNodes( Node... expected )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            assertCollection( index.getNodes( "key", "value" ), expected );
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.index.Neo4jTestCase;
+import org.neo4j.index.lucene.LuceneCommand.AddCommand;
+import org.neo4j.index.lucene.LuceneCommand.RemoveCommand;
+
+public class TestGroupCommitJournal
+{
+    private final File dir = new File( "target/var/group-commit-journal" );
+    
+    @Before
+    public void cleanDir()
+    {
+        Neo4jTestCase.deleteFileOrDirectory( dir );
+        dir.mkdirs();
+    }
+    
+    @Test
+    public void testEntriesSurviveReopening() throws Exception
+    {
+        GroupCommitJournal journal = new GroupCommitJournal( dir );
+        journal.append( 5, batches( "a", "b" ) );
+        journal.append( 6, batches( "b" ) );
+        journal.close();
+        
+        List<GroupCommitJournal.Entry> entries =
+            new GroupCommitJournal( dir ).readAll();
+        assertEquals( 2, entries.size() );
+        assertEquals( 5, entries.get( 0 ).txId );
+        assertEquals( 2, entries.get( 0 ).batches.size() );
+        assertEquals( "a", entries.get( 0 ).batches.get( 0 ).getKey() );
+        assertEquals( "b", entries.get( 0 ).batches.get( 1 ).getKey() );
+        assertEquals( 2, entries.get( 0 ).batches.get( 0 ).getCommands().size() );
+        assertEquals( 6, entries.get( 1 ).txId );
+    }
+    
+    @Test
+    public void testTornEntryIsNotRead() throws Exception
+    {
+        GroupCommitJournal journal = new GroupCommitJournal( dir );
+        journal.append( 5, batches( "a" ) );
+        journal.append( 6, batches( "a" ) );
+        journal.close();
+        
+        File file = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try
+        {
+            raf.setLength( raf.length() - 3 );
+        }
+        finally
+        {
+            raf.close();
+        }
+        
+        List<GroupCommitJournal.Entry> entries =
+            new GroupCommitJournal( dir ).readAll();
+        assertEquals( 1, entries.size() );
+        assertEquals( 5, entries.get( 0 ).txId );
+    }
+    
+    @Test
+    public void testFlushedGroupsAreDeleted() throws Exception
+    {
+        GroupCommitJournal journal = new GroupCommitJournal( dir );
+        journal.append( 5, batches( "a" ) );
+        long flushed = journal.rotate();
+        journal.append( 6, batches( "a" ) );
+        journal.deleteUpTo( flushed );
+        journal.close();
+        
+        List<GroupCommitJournal.Entry> entries =
+            new GroupCommitJournal( dir ).readAll();
+        assertEquals( 1, entries.size() );
+        assertEquals( 6, entries.get( 0 ).txId );
+    }
+    
+    @Test
+    public void testConcurrentCommittersShareForces() throws Exception
+    {
+        final GroupCommitJournal journal = new GroupCommitJournal( dir );
+        final int perThread = 50;
+        Thread[] threads = new Thread[4];
+        final List<Exception> failures = new ArrayList<Exception>();
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            final int first = i * perThread;
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for ( int tx = first; tx < first + perThread; tx++ )
+                        {
+                            journal.force( journal.append( tx, batches( "a" ) ) );
+                            if ( tx % 20 == 0 )
+                            {
+                                journal.rotate();
+                            }
+                        }
+                    }
+                    catch ( Exception e )
+                    {
+                        synchronized ( failures )
+                        {
+                            failures.add( e );
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        journal.close();
+        assertEquals( 0, failures.size() );
+        assertEquals( threads.length * perThread,
+            new GroupCommitJournal( dir ).readAll().size() );
+    }
+    
+    private List<LuceneBatchCommand> batches( String... keys )
+    {
+        List<LuceneBatchCommand> batches = new ArrayList<LuceneBatchCommand>();
+        for ( String key : keys )
+        {
+            List<LuceneCommand> commands = new ArrayList<LuceneCommand>();
+            commands.add( new RemoveCommand( 10L, key, "old" ) );
+            commands.add( new AddCommand( 10L, key, "new" ) );
+            batches.add( new LuceneBatchCommand( key, commands ) );
+        }
+        return batches;
+    }
+}
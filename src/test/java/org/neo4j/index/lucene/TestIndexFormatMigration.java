@@ -0,0 +1,214 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.index.Neo4jTestCase.assertCollection;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.index.IndexService;
+import org.neo4j.index.Neo4jTestCase;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+/**
+ * Don't extend Neo4jTestCase since these tests needs their own db.
+ */
+public class TestIndexFormatMigration
+{
+    private static final String PATH = "target/var/format-migration";
+    
+    private GraphDatabaseService graphDb;
+    private IndexService index;
+    
+    @Before
+    public void setUpDb()
+    {
+        Neo4jTestCase.deleteFileOrDirectory( new File( PATH ) );
+        graphDb = new EmbeddedGraphDatabase( PATH );
+    }
+    
+    @After
+    public void tearDownDb()
+    {
+        if ( index != null )
+        {
+            index.shutdown();
+        }
+        graphDb.shutdown();
+    }
+    
+    @Test
+    public void testOldFormatIsMigrated() throws Exception
+    {
+        Node oldNode1 = createNode();
+        Node oldNode2 = createNode();
+        graphDb.shutdown();
+        
+        // An index in the first format, with the ids as stored strings
+        Directory dir = FSDirectory.open( new File( PATH + "/" +
+            LuceneIndexService.DIR_NAME + "/key" ) );
+        IndexWriter writer = new IndexWriter( dir, new IndexWriterConfig(
+            LuceneDataSource.CURRENT_VERSION,
+            LuceneDataSource.LOWER_CASE_WHITESPACE_ANALYZER ) );
+        writer.addDocument( oldDocument( oldNode1.getId(), "value" ) );
+        writer.addDocument( oldDocument( oldNode2.getId(), "value" ) );
+        writer.addDocument( oldDocument( oldNode2.getId(), "other" ) );
+        writer.close();
+        assertEquals( 1, IndexFormat.getVersion( dir ) );
+        
+        // Rebuilt at startup, before any writer is opened
+        graphDb = new EmbeddedGraphDatabase( PATH );
+        index = new LuceneIndexService( graphDb );
+        assertEquals( IndexFormat.CURRENT_VERSION, IndexFormat.getVersion( dir ) );
+        assertNodes( "value", oldNode1, oldNode2 );
+        
+        Node newNode = createNode();
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            index.index( newNode, "key", "value" );
+            index.removeIndex( oldNode1, "key", "value" );
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        assertNodes( "value", oldNode2, newNode );
+        assertNodes( "other", oldNode2 );
+        
+        index.shutdown();
+        index = null;
+        assertEquals( IndexFormat.CURRENT_VERSION, IndexFormat.getVersion( dir ) );
+        dir.close();
+    }
+    
+    @Test
+    public void testAppliedTxIdIsRecorded() throws Exception
+    {
+        index = new LuceneIndexService( graphDb );
+        indexNode( createNode() );
+        index.shutdown();
+        Directory dir = FSDirectory.open( new File( PATH + "/" +
+            LuceneIndexService.DIR_NAME + "/key" ) );
+        long firstTxId = IndexFormat.getAppliedTxId( dir );
+        assertTrue( firstTxId > 0 );
+        
+        index = new LuceneIndexService( graphDb );
+        indexNode( createNode() );
+        index.shutdown();
+        index = null;
+        assertTrue( IndexFormat.getAppliedTxId( dir ) > firstTxId );
+        dir.close();
+    }
+    
+    @Test
+    public void testAppliedTxIdSurvivesMigration() throws Exception
+    {
+        Node oldNode = createNode();
+        graphDb.shutdown();
+        
+        Directory dir = FSDirectory.open( new File( PATH + "/" +
+            LuceneIndexService.DIR_NAME + "/key" ) );
+        IndexWriter writer = new IndexWriter( dir, new IndexWriterConfig(
+            LuceneDataSource.CURRENT_VERSION,
+            LuceneDataSource.LOWER_CASE_WHITESPACE_ANALYZER ) );
+        writer.addDocument( oldDocument( oldNode.getId(), "value" ) );
+        writer.commit( Collections.singletonMap( IndexFormat.APPLIED_TX_KEY,
+            "42" ) );
+        writer.close();
+        assertEquals( 1, IndexFormat.getVersion( dir ) );
+        
+        graphDb = new EmbeddedGraphDatabase( PATH );
+        index = new LuceneIndexService( graphDb );
+        assertEquals( IndexFormat.CURRENT_VERSION, IndexFormat.getVersion( dir ) );
+        assertEquals( 42, IndexFormat.getAppliedTxId( dir ) );
+        assertNodes( "value", oldNode );
+        dir.close();
+    }
+    
+    private void indexNode( Node node )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            index.index( node, "key", "value" );
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+    
+    private Document oldDocument( long nodeId, String value )
+    {
+        Document document = new Document();
+        document.add( new Field( LuceneIndexService.DOC_ID_KEY,
+            String.valueOf( nodeId ), Field.Store.YES,
+            Field.Index.NOT_ANALYZED ) );
+        document.add( new Field( LuceneIndexService.DOC_INDEX_KEY, value,
+            Field.Store.NO, Field.Index.NOT_ANALYZED ) );
+        return document;
+    }
+    
+    private Node createNode()
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            Node node = graphDb.createNode();
+            tx.success();
+            return node;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+    
+    private void assertNodes( String value, Node... expected )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            assertCollection( index.getNodes( "key", value ), expected );
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+}
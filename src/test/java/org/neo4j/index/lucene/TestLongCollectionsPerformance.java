@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Compares the time and the memory it takes to collect node ids in the
+ * primitive {@link LongSet} and {@link LongArray} with the boxed
+ * collections they replaced. The memory is measured as the growth of the
+ * used heap after a GC, which is only approximate.
+ * 
+ * This test is abstract because it takes a while to run. It belongs in a QA
+ * project instead really...
+ */
+public abstract class TestLongCollectionsPerformance
+{
+    private static final int IDS = 2000000;
+    private static final int ROUNDS = 5;
+    
+    @Test
+    public void testSetAllocation()
+    {
+        for ( int round = 0; round < ROUNDS; round++ )
+        {
+            long start = usedMemory();
+            long time = System.currentTimeMillis();
+            Set<Long> boxed = new HashSet<Long>();
+            for ( long id = 0; id < IDS; id++ )
+            {
+                boxed.add( id * 7 );
+            }
+            report( "HashSet<Long>", time, start, boxed.size() );
+            boxed = null;
+            
+            start = usedMemory();
+            time = System.currentTimeMillis();
+            LongSet primitive = new LongSet();
+            for ( long id = 0; id < IDS; id++ )
+            {
+                primitive.add( id * 7 );
+            }
+            report( "LongSet", time, start, primitive.size() );
+        }
+    }
+    
+    @Test
+    public void testListAllocation()
+    {
+        for ( int round = 0; round < ROUNDS; round++ )
+        {
+            long start = usedMemory();
+            long time = System.currentTimeMillis();
+            List<Long> boxed = new ArrayList<Long>();
+            for ( long id = 0; id < IDS; id++ )
+            {
+                boxed.add( id * 7 );
+            }
+            report( "ArrayList<Long>", time, start, boxed.size() );
+            boxed = null;
+            
+            start = usedMemory();
+            time = System.currentTimeMillis();
+            LongArray primitive = new LongArray();
+            for ( long id = 0; id < IDS; id++ )
+            {
+                primitive.add( id * 7 );
+            }
+            report( "LongArray", time, start, primitive.size() );
+        }
+    }
+    
+    private void report( String name, long startTime, long startMemory,
+        int size )
+    {
+        long time = System.currentTimeMillis() - startTime;
+        long memory = usedMemory() - startMemory;
+        System.out.println( name + ": " + size + " ids in " + time + "ms, " +
+            ( memory / 1024 / 1024 ) + "MB" );
+    }
+    
+    private static long usedMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for ( int i = 0; i < 3; i++ )
+        {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
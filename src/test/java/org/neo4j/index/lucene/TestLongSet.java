@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestLongSet
+{
+    @Test
+    public void testAddContainsRemove()
+    {
+        LongSet set = new LongSet();
+        assertTrue( set.isEmpty() );
+        assertTrue( set.add( 0 ) );
+        assertTrue( set.add( -1 ) );
+        assertTrue( set.add( Long.MAX_VALUE ) );
+        assertFalse( set.add( 0 ) );
+        assertFalse( set.add( -1 ) );
+        assertEquals( 3, set.size() );
+        assertTrue( set.contains( -1 ) );
+        assertFalse( set.contains( 1 ) );
+        
+        assertTrue( set.remove( -1 ) );
+        assertFalse( set.remove( -1 ) );
+        assertTrue( set.remove( 0 ) );
+        assertFalse( set.contains( 0 ) );
+        assertEquals( 1, set.size() );
+        assertTrue( Arrays.equals( new long[] { Long.MAX_VALUE },
+            set.toArray() ) );
+    }
+    
+    @Test
+    public void testBehavesLikeHashSet()
+    {
+        // A narrow range of values so that there are lots of collisions
+        // and removals in the middle of probe sequences
+        Random random = new Random( 1234 );
+        LongSet set = new LongSet();
+        Set<Long> expected = new HashSet<Long>();
+        for ( int i = 0; i < 100000; i++ )
+        {
+            long value = random.nextInt( 2000 );
+            if ( random.nextInt( 3 ) == 0 )
+            {
+                assertEquals( expected.remove( value ), set.remove( value ) );
+            }
+            else
+            {
+                assertEquals( expected.add( value ), set.add( value ) );
+            }
+            assertEquals( expected.size(), set.size() );
+        }
+        for ( long value = 0; value < 2000; value++ )
+        {
+            assertEquals( expected.contains( value ), set.contains( value ) );
+        }
+        long[] values = set.toArray();
+        assertEquals( expected.size(), values.length );
+        for ( long value : values )
+        {
+            assertTrue( expected.contains( value ) );
+        }
+    }
+    
+    @Test( expected = UnsupportedOperationException.class )
+    public void testEmptyCantBeModified()
+    {
+        LongSet.EMPTY.add( 1 );
+    }
+    
+    @Test
+    public void testLongArray()
+    {
+        LongArray array = new LongArray( 1 );
+        for ( long i = 0; i < 100; i++ )
+        {
+            array.add( i );
+        }
+        array.addAll( new long[] { 100, 101 } );
+        assertEquals( 102, array.size() );
+        long expected = 0;
+        for ( long value : array )
+        {
+            assertEquals( expected++, value );
+        }
+        assertEquals( 102, expected );
+        assertEquals( 101, array.get( 101 ) );
+        assertEquals( 102, array.toArray().length );
+    }
+}
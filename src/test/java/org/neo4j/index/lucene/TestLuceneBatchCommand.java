@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.neo4j.index.lucene.LuceneCommand.AddCommand;
+import org.neo4j.index.lucene.LuceneCommand.RemoveCommand;
+
+public class TestLuceneBatchCommand
+{
+    @Test
+    public void testCommandsSurviveEncoding() throws Exception
+    {
+        List<LuceneCommand> commands = new ArrayList<LuceneCommand>();
+        commands.add( new RemoveCommand( null, "key", null ) );
+        commands.add( new AddCommand( 1234567890123L, "key", "value" ) );
+        commands.add( new AddCommand( 3L, "key", "v\u00e4rde \u65e5\u672c" ) );
+        commands.add( new RemoveCommand( 3L, "key", null ) );
+        commands.add( new RemoveCommand( Long.MAX_VALUE, "key", "" ) );
+        commands.add( new AddCommand( 0L, "key", "value" ) );
+        byte[] payload = new LuceneBatchCommand( "key", commands ).encode();
+        
+        // A buffer smaller than the payload so that it's read in chunks
+        LuceneBatchCommand read = LuceneBatchCommand.read(
+            channel( payload, payload.length ), ByteBuffer.allocate( 8 ) );
+        assertEquals( "key", read.getKey() );
+        assertEquals( commands.size(), read.getCommands().size() );
+        for ( int i = 0; i < commands.size(); i++ )
+        {
+            LuceneCommand expected = commands.get( i );
+            LuceneCommand actual = read.getCommands().get( i );
+            assertEquals( expected.getClass(), actual.getClass() );
+            assertEquals( expected.getNodeId(), actual.getNodeId() );
+            assertEquals( "key", actual.getKey() );
+            assertEquals( expected.getValue(), actual.getValue() );
+        }
+    }
+    
+    @Test
+    public void testCompactComparedToSingleCommands() throws Exception
+    {
+        List<LuceneCommand> commands = new ArrayList<LuceneCommand>();
+        for ( long id = 1000000; id < 1000100; id++ )
+        {
+            commands.add( new AddCommand( id, "username", "user" + id ) );
+        }
+        byte[] payload = new LuceneBatchCommand( "username", commands ).encode();
+        // Type, node id, key and value lengths and key and value as UTF-16
+        int singleCommandsSize = 100 * ( 1 + 8 + 4 + 4 + 2 * "username".length() +
+            2 * "user1000000".length() );
+        assertTrue( payload.length * 3 < singleCommandsSize );
+    }
+    
+    @Test
+    public void testTruncatedCommandIsNotRead() throws Exception
+    {
+        List<LuceneCommand> commands = new ArrayList<LuceneCommand>();
+        commands.add( new AddCommand( 1L, "key", "value" ) );
+        byte[] payload = new LuceneBatchCommand( "key", commands ).encode();
+        assertNull( LuceneBatchCommand.read(
+            channel( payload, payload.length - 1 ), ByteBuffer.allocate( 64 ) ) );
+    }
+    
+    @Test
+    public void testGarbageIsNotRead() throws Exception
+    {
+        assertNull( LuceneBatchCommand.read( lengthOnly( Integer.MAX_VALUE ),
+            ByteBuffer.allocate( 64 ) ) );
+        assertNull( LuceneBatchCommand.read( lengthOnly( -5 ),
+            ByteBuffer.allocate( 64 ) ) );
+        
+        // A key length way past the end of the payload
+        byte[] payload = new byte[] { 1, 100, 'k', 'e', 'y' };
+        assertNull( LuceneBatchCommand.read(
+            channel( payload, payload.length ), ByteBuffer.allocate( 64 ) ) );
+    }
+    
+    private ReadableByteChannel lengthOnly( int length )
+    {
+        ByteBuffer record = ByteBuffer.allocate( 4 );
+        record.putInt( length );
+        return Channels.newChannel( new ByteArrayInputStream( record.array() ) );
+    }
+    
+    private ReadableByteChannel channel( byte[] payload, int length )
+    {
+        ByteBuffer record = ByteBuffer.allocate( 4 + length );
+        record.putInt( payload.length );
+        record.put( payload, 0, length );
+        return Channels.newChannel( new ByteArrayInputStream( record.array() ) );
+    }
+}
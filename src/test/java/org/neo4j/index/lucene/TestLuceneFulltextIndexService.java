@@ -43,23 +43,43 @@ public class TestLuceneFulltextIndexService extends TestLuceneIndexingService
     
     @Override
     @Ignore
-    public void testCaching()
+    public void testCachedResultsArePatchedOnCommit()
     {
-        // Do nothing
-    }
-
-    @Override
-    @Ignore
-    public void testGetNodesBug()
-    {
-        // Do nothing
+        // Fulltext results are dropped on commit, see testCachedQueryResults
     }
     
-    @Override
-    @Ignore
-    public void testRemoveAllWithCache()
+    @Test
+    public void testCachedQueryResults()
     {
-        // Do nothing
+        Node andy = graphDb().createNode();
+        Node larry = graphDb().createNode();
+        String key = "cachedquery";
+        LuceneFulltextIndexService index = (LuceneFulltextIndexService) index();
+        index.enableCache( key, 100 );
+        index().index( andy, key, "Andy Wachowski" );
+        restartTx();
+        assertCollection( asCollection( index().getNodes( key, "andy" ) ),
+            andy );
+        // The same query once analyzed
+        assertCollection( asCollection( index().getNodes( key, " ANDY" ) ),
+            andy );
+        CacheStatistics statistics = index.getCacheStatistics( key );
+        assertEquals( 1, statistics.getMisses() );
+        assertEquals( 1, statistics.getHits() );
+        // Exact matching isn't mixed up with it
+        assertNull( index.getSingleNodeExactMatch( key, "andy" ) );
+        
+        // A commit to the key drops its cached results
+        index().index( larry, key, "Andy Larry" );
+        restartTx();
+        assertCollection( asCollection( index().getNodes( key, "andy" ) ),
+            andy, larry );
+        assertEquals( 3, statistics.getMisses() );
+        
+        index().removeIndex( andy, key, "Andy Wachowski" );
+        index().removeIndex( larry, key, "Andy Larry" );
+        andy.delete();
+        larry.delete();
     }
 
     @Test
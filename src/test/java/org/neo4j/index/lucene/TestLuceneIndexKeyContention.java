@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Contention tests for the per-key locking in {@link LuceneDataSource}, i.e.
+ * commits and reads on unrelated keys shouldn't block each other.
+ * 
+ * This test is abstract because it takes a while to run. It belongs in a QA
+ * project instead really...
+ */
+public abstract class TestLuceneIndexKeyContention extends
+    TestLuceneIndexManyThreads
+{
+    private static final String COMMIT_KEY = "email";
+    private static final String READ_KEY = "username";
+    
+    private LuceneDataSource dataSource()
+    {
+        return ( (LuceneIndexService) index() ).getXaDataSource();
+    }
+    
+    @Test
+    public void testReadNotBlockedByCommitOnOtherKey() throws Exception
+    {
+        Node node = graphDb().createNode();
+        index().index( node, READ_KEY, "mattias" );
+        restartTx();
+        
+        final CountDownLatch locked = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        Thread committer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                // Hold the lock like a (very) long commit on COMMIT_KEY would
+                Collection<String> keys = Arrays.asList( COMMIT_KEY );
+                dataSource().getWriteLock( keys );
+                try
+                {
+                    locked.countDown();
+                    release.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.interrupted();
+                }
+                finally
+                {
+                    dataSource().releaseWriteLock( keys );
+                }
+            }
+        };
+        committer.start();
+        locked.await();
+        
+        final AtomicInteger found = new AtomicInteger();
+        Thread reader = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                Transaction tx = graphDb().beginTx();
+                try
+                {
+                    found.set( countIterable( index().getNodes( READ_KEY,
+                        "mattias" ) ) );
+                }
+                finally
+                {
+                    tx.finish();
+                }
+            }
+        };
+        reader.start();
+        reader.join( 5000 );
+        boolean blocked = reader.isAlive();
+        release.countDown();
+        committer.join();
+        reader.join();
+        assertFalse( "Read on " + READ_KEY + " blocked by commit on " +
+            COMMIT_KEY, blocked );
+        assertEquals( 1, found.get() );
+    }
+    
+    @Test
+    public void testReadThroughputDuringCommitsOnOtherKey() throws Exception
+    {
+        Node node = graphDb().createNode();
+        index().index( node, READ_KEY, "mattias" );
+        restartTx();
+        
+        final long endTime = System.currentTimeMillis() + 1000 * 10;
+        final AtomicInteger commits = new AtomicInteger();
+        final AtomicInteger reads = new AtomicInteger();
+        Collection<Thread> threads = new ArrayList<Thread>();
+        for ( int i = 0; i < 4; i++ )
+        {
+            threads.add( new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    while ( System.currentTimeMillis() < endTime )
+                    {
+                        Transaction tx = graphDb().beginTx();
+                        try
+                        {
+                            for ( int j = 0; j < 100; j++ )
+                            {
+                                Node node = graphDb().createNode();
+                                index().index( node, COMMIT_KEY,
+                                    "user" + node.getId() + "@neo4j.org" );
+                            }
+                            tx.success();
+                        }
+                        finally
+                        {
+                            tx.finish();
+                        }
+                        commits.incrementAndGet();
+                    }
+                }
+            } );
+        }
+        for ( int i = 0; i < 4; i++ )
+        {
+            threads.add( new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    while ( System.currentTimeMillis() < endTime )
+                    {
+                        Transaction tx = graphDb().beginTx();
+                        try
+                        {
+                            assertTrue( index().getSingleNode( READ_KEY,
+                                "mattias" ) != null );
+                        }
+                        finally
+                        {
+                            tx.finish();
+                        }
+                        reads.incrementAndGet();
+                    }
+                }
+            } );
+        }
+        for ( Thread thread : threads )
+        {
+            thread.start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        assertTrue( commits.get() > 0 );
+        assertTrue( reads.get() > 0 );
+    }
+}
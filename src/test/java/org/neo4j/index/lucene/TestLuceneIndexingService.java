@@ -29,7 +29,12 @@ import java.io.File;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.neo4j.graphdb.Node;
@@ -287,6 +292,105 @@ public class TestLuceneIndexingService extends Neo4jWithIndexTestCase
         node1.delete();
     }
     
+    @Test
+    public void testCachedResultsArePatchedOnCommit() throws Exception
+    {
+        Node node1 = graphDb().createNode();
+        Node node2 = graphDb().createNode();
+        String key = "patchedcache";
+        LuceneIndexService index = (LuceneIndexService) index();
+        index.enableCache( key, 1000 );
+        index().index( node1, key, "active" );
+        restartTx();
+        assertCollection( asCollection(
+            index().getNodes( key, "active" ) ), node1 );
+        restartTx();
+        CacheStatistics statistics = index.getCacheStatistics( key );
+        long misses = statistics.getMisses();
+        
+        index().index( node2, key, "active" );
+        restartTx();
+        assertCollection( asCollection(
+            index().getNodes( key, "active" ) ), node1, node2 );
+        index().removeIndex( node1, key, "active" );
+        restartTx();
+        assertCollection( asCollection(
+            index().getNodes( key, "active" ) ), node2 );
+        index().removeIndex( node2, key );
+        restartTx();
+        assertCollection( asCollection(
+            index().getNodes( key, "active" ) ) );
+        // All served from the patched cached result
+        assertEquals( misses, statistics.getMisses() );
+        assertEquals( 1, statistics.getEntries() );
+        node1.delete();
+        node2.delete();
+    }
+    
+    @Test
+    public void testSortedResultsKeepTheirOrderWithCache() throws Exception
+    {
+        Node node1 = graphDb().createNode();
+        Node node2 = graphDb().createNode();
+        Node node3 = graphDb().createNode();
+        String key = "sortedcache";
+        LuceneIndexService index = (LuceneIndexService) index();
+        index.enableCache( key, 1000 );
+        Sort byIdDescending = new Sort( new SortField(
+            LuceneIndexService.DOC_ID_KEY, FieldCache.NUMERIC_UTILS_LONG_PARSER,
+            true ) );
+        index().index( node1, key, "sorted" );
+        index().index( node2, key, "sorted" );
+        restartTx();
+        assertOrder( index.getNodes( key, "sorted", byIdDescending ),
+            node2, node1 );
+        
+        // Would be appended to a cached result
+        index().index( node3, key, "sorted" );
+        restartTx();
+        assertOrder( index.getNodes( key, "sorted", byIdDescending ),
+            node3, node2, node1 );
+        assertEquals( 0, index.getCacheStatistics( key ).getEntries() );
+        node1.delete();
+        node2.delete();
+        node3.delete();
+    }
+    
+    private void assertOrder( IndexHits<Node> hits, Node... expected )
+    {
+        for ( Node node : expected )
+        {
+            assertTrue( hits.hasNext() );
+            assertEquals( node, hits.next() );
+        }
+        assertFalse( hits.hasNext() );
+    }
+    
+    @Test
+    public void testGetSingleNodeMissesAndHitsAcrossCommits() throws Exception
+    {
+        String key = "externalid";
+        Node node1 = graphDb().createNode();
+        index().index( node1, key, "id1" );
+        restartTx();
+        assertEquals( node1, index().getSingleNode( key, "id1" ) );
+        assertNull( index().getSingleNode( key, "id2" ) );
+        
+        // In a new segment after the reopen
+        Node node2 = graphDb().createNode();
+        index().index( node2, key, "id2" );
+        assertEquals( node2, index().getSingleNode( key, "id2" ) );
+        restartTx();
+        assertEquals( node2, index().getSingleNode( key, "id2" ) );
+        assertEquals( node1, index().getSingleNode( key, "id1" ) );
+        assertNull( index().getSingleNode( key, "id3" ) );
+        
+        index().removeIndex( node1, key, "id1" );
+        index().removeIndex( node2, key, "id2" );
+        node1.delete();
+        node2.delete();
+    }
+    
     @Test
     public void testIndexLargeString() throws Exception
     {
@@ -442,4 +546,29 @@ public class TestLuceneIndexingService extends Neo4jWithIndexTestCase
         Node t = index().getSingleNode(key, name);
         assertNotNull(t);
     }
+    
+    @Test
+    public void testOptimizeInBackground() throws Exception
+    {
+        Node node = graphDb().createNode();
+        index().index( node, "optimize1", "value" );
+        index().index( node, "optimize2", "value" );
+        restartTx();
+        final CountDownLatch done = new CountDownLatch( 1 );
+        ( (LuceneIndexService) index() ).optimizeInBackground( 1,
+            new OptimizeProgressListener()
+            {
+                public void optimized( String key, int optimizedKeys,
+                    int totalKeys )
+                {
+                    if ( optimizedKeys == totalKeys )
+                    {
+                        done.countDown();
+                    }
+                }
+            } );
+        assertTrue( done.await( 30, TimeUnit.SECONDS ) );
+        assertEquals( node, index().getSingleNode( "optimize1", "value" ) );
+        assertEquals( node, index().getSingleNode( "optimize2", "value" ) );
+    }
 }
@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+import static org.neo4j.kernel.CommonFactories.defaultLogBufferFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.index.IndexService;
+import org.neo4j.index.Neo4jTestCase;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.kernel.impl.transaction.XidImpl;
+import org.neo4j.kernel.impl.transaction.xaframework.LogBufferFactory;
+
+/**
+ * Compares the time it takes to recover many keys with one and with
+ * several recovery threads, see {@link LuceneDataSource#RECOVERY_THREADS}.
+ * The log is set up like in {@link TestRecovery#testReCommit()}.
+ * 
+ * This test is abstract because it takes a while to run. It belongs in a QA
+ * project instead really...
+ */
+public abstract class TestLuceneRecoveryPerformance
+{
+    private static final String PATH = "target/var/recovery-performance";
+    private static final String LUCENE_DIR = PATH + "/" +
+        LuceneIndexService.DIR_NAME;
+    private static final int KEYS = 32;
+    private static final int TRANSACTIONS = 2000;
+    
+    @Test
+    public void testParallelRecovery() throws Exception
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long serial = timeRecovery( 1 );
+        long parallel = timeRecovery( threads );
+        System.out.println( "Recovery of " + TRANSACTIONS + " txs over " +
+            KEYS + " keys: " + serial + "ms with 1 thread, " + parallel +
+            "ms with " + threads + " threads" );
+    }
+    
+    private long timeRecovery( int threads ) throws Exception
+    {
+        Neo4jTestCase.deleteFileOrDirectory( new File( PATH ) );
+        GraphDatabaseService graphDb = new EmbeddedGraphDatabase( PATH );
+        IndexService index = new LuceneIndexService( graphDb );
+        Node node;
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            node = graphDb.createNode();
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        index.shutdown();
+        
+        LuceneDataSource xaDs = new LuceneDataSource( params( 1 ) );
+        LuceneXaConnection xaC = (LuceneXaConnection) xaDs.getXaConnection();
+        XAResource xaR = xaC.getXaResource();
+        for ( int i = 0; i < TRANSACTIONS; i++ )
+        {
+            Xid xid = new XidImpl( ( "tx" + i ).getBytes(), new byte[1] );
+            xaR.start( xid, XAResource.TMNOFLAGS );
+            for ( int k = 0; k < 5; k++ )
+            {
+                xaC.index( node, "key" + ( ( i + k ) % KEYS ), "value" + i );
+            }
+            xaR.end( xid, XAResource.TMSUCCESS );
+            xaR.prepare( xid );
+            xaR.commit( xid, false );
+        }
+        copyFile( LUCENE_DIR + "/lucene.log.active", LUCENE_DIR + "/active.bak" );
+        copyFile( LUCENE_DIR + "/lucene.log.1", LUCENE_DIR + "/1.bak" );
+        xaDs.close();
+        
+        // Recovery gets to do all of the work again
+        for ( int k = 0; k < KEYS; k++ )
+        {
+            Neo4jTestCase.deleteFileOrDirectory(
+                new File( LUCENE_DIR, "key" + k ) );
+        }
+        copyFile( LUCENE_DIR + "/active.bak", LUCENE_DIR + "/lucene.log.active" );
+        copyFile( LUCENE_DIR + "/1.bak", LUCENE_DIR + "/lucene.log.1" );
+        
+        long start = System.currentTimeMillis();
+        xaDs = new LuceneDataSource( params( threads ) );
+        long time = System.currentTimeMillis() - start;
+        xaDs.close();
+        
+        index = new LuceneIndexService( graphDb );
+        tx = graphDb.beginTx();
+        try
+        {
+            assertEquals( node, index.getSingleNode( "key0", "value0" ) );
+        }
+        finally
+        {
+            tx.finish();
+        }
+        index.shutdown();
+        graphDb.shutdown();
+        return time;
+    }
+    
+    private Map<Object,Object> params( int recoveryThreads )
+    {
+        Map<Object,Object> params = new HashMap<Object,Object>();
+        params.put( "dir", LUCENE_DIR );
+        params.put( "store_dir", PATH );
+        params.put( LogBufferFactory.class,
+            defaultLogBufferFactory( stringMap() ) );
+        params.put( LuceneDataSource.RECOVERY_THREADS, "" + recoveryThreads );
+        return params;
+    }
+    
+    private void copyFile( String name, String copy ) throws IOException
+    {
+        File source = new File( name );
+        if ( !source.exists() )
+        {
+            return;
+        }
+        FileInputStream in = new FileInputStream( source );
+        FileOutputStream out = new FileOutputStream( copy );
+        try
+        {
+            byte[] buffer = new byte[8192];
+            for ( int read; ( read = in.read( buffer ) ) != -1; )
+            {
+                out.write( buffer, 0, read );
+            }
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+    }
+}
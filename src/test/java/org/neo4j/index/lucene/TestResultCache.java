@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestResultCache
+{
+    @Test
+    public void testCountsHitsAndMisses()
+    {
+        ResultCache cache = new ResultCache( Long.MAX_VALUE );
+        assertNull( cache.get( "key", "value" ) );
+        assertNull( cache.getStatistics( "key" ) );
+        
+        cache.enable( "key", 10 );
+        assertNull( cache.get( "key", "value" ) );
+        cache.put( "key", "value", new long[] { 1, 2, 3 } );
+        assertEquals( 3, cache.get( "key", "value" ).length );
+        CacheStatistics statistics = cache.getStatistics( "key" );
+        assertEquals( 1, statistics.getHits() );
+        assertEquals( 1, statistics.getMisses() );
+        assertEquals( 1, statistics.getEntries() );
+        assertEquals( ResultCache.estimateBytes( "value", new long[3] ),
+            statistics.getBytes() );
+        assertEquals( statistics.getBytes(), cache.getBytes() );
+        
+        cache.disable( "key" );
+        assertFalse( cache.isEnabled( "key" ) );
+        assertEquals( 0, statistics.getEntries() );
+        assertEquals( 0, cache.getBytes() );
+        // The counters are kept
+        assertEquals( 1, cache.getStatistics( "key" ).getHits() );
+    }
+    
+    @Test
+    public void testBoundedByEntriesPerKey()
+    {
+        ResultCache cache = new ResultCache( Long.MAX_VALUE );
+        cache.enable( "key", 2 );
+        cache.put( "key", "1", new long[] { 1 } );
+        cache.put( "key", "2", new long[] { 2 } );
+        cache.get( "key", "1" );
+        cache.put( "key", "3", new long[] { 3 } );
+        assertNotNull( cache.get( "key", "1" ) );
+        assertNull( cache.get( "key", "2" ) );
+        assertNotNull( cache.get( "key", "3" ) );
+        assertEquals( 1, cache.getStatistics( "key" ).getEvictions() );
+        assertEquals( 2, cache.getStatistics( "key" ).getEntries() );
+    }
+    
+    @Test
+    public void testBoundedByBytesOfAllKeys()
+    {
+        long[] ids = new long[100];
+        long entryBytes = ResultCache.estimateBytes( "1", ids );
+        ResultCache cache = new ResultCache( entryBytes * 3 );
+        cache.enable( "first", 100 );
+        cache.enable( "second", 100 );
+        cache.put( "first", "1", ids );
+        cache.put( "second", "1", ids );
+        cache.put( "first", "2", ids );
+        cache.get( "first", "1" );
+        cache.put( "second", "2", ids );
+        
+        // The least recently used entry of all keys is evicted
+        assertNull( cache.get( "second", "1" ) );
+        assertNotNull( cache.get( "first", "1" ) );
+        assertNotNull( cache.get( "first", "2" ) );
+        assertNotNull( cache.get( "second", "2" ) );
+        assertEquals( 1, cache.getStatistics( "second" ).getEvictions() );
+        assertEquals( 0, cache.getStatistics( "first" ).getEvictions() );
+        assertTrue( cache.getBytes() <= cache.getMaxBytes() );
+        
+        // Too big to be cached at all
+        cache.put( "first", "3", new long[1000] );
+        assertNull( cache.get( "first", "3" ) );
+    }
+    
+    @Test
+    public void testPatchCachedResults()
+    {
+        ResultCache cache = new ResultCache( Long.MAX_VALUE );
+        cache.enable( "key", 10 );
+        cache.put( "key", "1", new long[] { 1, 2 } );
+        cache.put( "key", "2", new long[] { 2, 3 } );
+        cache.patch( "key", "1", 3, true );
+        cache.patch( "key", "1", 1, false );
+        cache.patch( "key", "1", 3, true );
+        // Not cached, nothing to patch
+        cache.patch( "key", "3", 3, true );
+        assertTrue( Arrays.equals( new long[] { 2, 3 },
+            cache.get( "key", "1" ) ) );
+        assertNull( cache.get( "key", "3" ) );
+        
+        cache.removeFromAll( "key", 2 );
+        assertTrue( Arrays.equals( new long[] { 3 }, cache.get( "key", "1" ) ) );
+        assertTrue( Arrays.equals( new long[] { 3 }, cache.get( "key", "2" ) ) );
+        assertEquals( ResultCache.estimateBytes( "1", new long[1] ) * 2,
+            cache.getBytes() );
+        
+        // Results which grow too big aren't cached anymore
+        cache.setMaxResultSize( 2 );
+        cache.patch( "key", "1", 4, true );
+        assertNull( cache.get( "key", "1" ) );
+        assertNotNull( cache.get( "key", "2" ) );
+        cache.setMaxResultSize( 1 );
+        assertNull( cache.get( "key", "2" ) );
+        assertEquals( 0, cache.getBytes() );
+    }
+    
+    @Test
+    public void testConcurrentKeysStayWithinBytes() throws Exception
+    {
+        final long[] ids = new long[10];
+        final ResultCache cache = new ResultCache(
+            ResultCache.estimateBytes( "1000", ids ) * 20 );
+        Thread[] threads = new Thread[4];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            final String key = "key" + i;
+            cache.enable( key, 100 );
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for ( int value = 0; value < 2000; value++ )
+                    {
+                        cache.put( key, "" + value % 150, ids );
+                        cache.get( key, "" + ( value + 7 ) % 150 );
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        
+        // The byte count matches what's cached, after all evictions
+        long bytes = 0;
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            CacheStatistics statistics = cache.getStatistics( "key" + i );
+            assertTrue( statistics.getEvictions() > 0 );
+            bytes += statistics.getBytes();
+        }
+        assertEquals( bytes, cache.getBytes() );
+        assertTrue( cache.getBytes() <= cache.getMaxBytes() );
+    }
+}
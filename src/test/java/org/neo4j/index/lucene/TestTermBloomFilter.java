@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+public class TestTermBloomFilter
+{
+    @Test
+    public void testNoFalseNegativesAndFewFalsePositives() throws Exception
+    {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter( dir, new IndexWriterConfig(
+            LuceneDataSource.CURRENT_VERSION, new KeywordAnalyzer() ) );
+        int count = 10000;
+        for ( int i = 0; i < count; i++ )
+        {
+            Document document = new Document();
+            document.add( new Field( "field", "value" + i, Field.Store.NO,
+                Field.Index.NOT_ANALYZED ) );
+            document.add( new Field( "other", "other" + i, Field.Store.NO,
+                Field.Index.NOT_ANALYZED ) );
+            writer.addDocument( document );
+        }
+        writer.optimize();
+        writer.close();
+        
+        IndexReader reader = IndexReader.open( dir, true );
+        try
+        {
+            TermBloomFilter filter = TermBloomFilter.build(
+                reader.getSequentialSubReaders()[0], "field" );
+            for ( int i = 0; i < count; i++ )
+            {
+                assertTrue( filter.mightContain( "value" + i ) );
+            }
+            int falsePositives = 0;
+            for ( int i = 0; i < count; i++ )
+            {
+                if ( filter.mightContain( "missing" + i ) )
+                {
+                    falsePositives++;
+                }
+            }
+            assertTrue( "" + falsePositives, falsePositives < count / 20 );
+            
+            TermBloomFilter empty = TermBloomFilter.build(
+                reader.getSequentialSubReaders()[0], "nonexistent" );
+            assertFalse( empty.mightContain( "value0" ) );
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+}
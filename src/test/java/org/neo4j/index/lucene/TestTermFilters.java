@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.index.Neo4jTestCase;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+/**
+ * Don't extend Neo4jTestCase since these tests needs their own configuration
+ * of the db.
+ */
+public class TestTermFilters
+{
+    private GraphDatabaseService graphDb;
+    private LuceneIndexService index;
+    
+    private String getDbPath()
+    {
+        return "target/var/term-filters";
+    }
+    
+    private void startDb( Map<String, String> config )
+    {
+        Neo4jTestCase.deleteFileOrDirectory( new File( getDbPath() ) );
+        graphDb = new EmbeddedGraphDatabase( getDbPath(), config );
+        index = new LuceneIndexService( graphDb );
+    }
+    
+    @After
+    public void tearDownDb()
+    {
+        index.shutdown();
+        graphDb.shutdown();
+    }
+    
+    @Test
+    public void testFiltersAreBuiltInTheBackground() throws Exception
+    {
+        startDb( stringMap( LuceneDataSource.TERM_FILTER_MIN_TERMS, "0" ) );
+        Node[] nodes = indexNodes( 100 );
+        assertLookups( nodes );
+        
+        IndexSearcherRef searcher =
+            index.getXaDataSource().acquireIndexSearcher( "id" );
+        try
+        {
+            long end = System.currentTimeMillis() + 10000;
+            while ( searcher.getTermFilters() == null &&
+                System.currentTimeMillis() < end )
+            {
+                Thread.sleep( 10 );
+            }
+            TermBloomFilter[] filters = searcher.getTermFilters();
+            assertNotNull( filters );
+            assertEquals( searcher.getSegments().length, filters.length );
+            for ( TermBloomFilter filter : filters )
+            {
+                assertNotNull( filter );
+            }
+        }
+        finally
+        {
+            searcher.release();
+        }
+        assertLookups( nodes );
+    }
+    
+    @Test
+    public void testSmallSegmentsAreLookedUpWithoutFilters() throws Exception
+    {
+        // The default min terms leaves the segments here without filters
+        startDb( stringMap() );
+        assertLookups( indexNodes( 10 ) );
+    }
+    
+    @Test
+    public void testFiltersCanBeTurnedOff() throws Exception
+    {
+        startDb( stringMap( LuceneDataSource.TERM_FILTERS, "false",
+            LuceneDataSource.TERM_FILTER_MIN_TERMS, "0" ) );
+        assertLookups( indexNodes( 10 ) );
+    }
+    
+    private Node[] indexNodes( int count )
+    {
+        Node[] nodes = new Node[count];
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            for ( int i = 0; i < count; i++ )
+            {
+                nodes[i] = graphDb.createNode();
+                index.index( nodes[i], "id", "id" + i );
+            }
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        return nodes;
+    }
+    
+    private void assertLookups( Node[] nodes )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            for ( int i = 0; i < nodes.length; i++ )
+            {
+                assertEquals( nodes[i], index.getSingleNode( "id", "id" + i ) );
+                assertNull( index.getSingleNode( "id", "missing" + i ) );
+            }
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+
+import java.io.File;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.LockObtainFailedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.index.Neo4jTestCase;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+/**
+ * Don't extend Neo4jTestCase since these tests needs their own configuration
+ * of the db.
+ */
+public class TestWriterLifecycle
+{
+    private static final String PATH = "target/var/writer-lifecycle";
+    private static final String KEY = "key";
+    
+    private GraphDatabaseService graphDb;
+    private LuceneIndexService index;
+    
+    @Before
+    public void setUpDb()
+    {
+        Neo4jTestCase.deleteFileOrDirectory( new File( PATH ) );
+        startDb( "600000" );
+    }
+    
+    private void startDb( String writerIdleTimeout )
+    {
+        graphDb = new EmbeddedGraphDatabase( PATH, stringMap(
+            LuceneDataSource.WRITER_IDLE_TIMEOUT, writerIdleTimeout ) );
+        index = new LuceneIndexService( graphDb );
+    }
+    
+    private void stopDb()
+    {
+        if ( graphDb != null )
+        {
+            index.shutdown();
+            graphDb.shutdown();
+            graphDb = null;
+        }
+    }
+    
+    @After
+    public void tearDownDb()
+    {
+        stopDb();
+    }
+    
+    private LuceneDataSource dataSource()
+    {
+        return index.getXaDataSource();
+    }
+    
+    private File indexDir()
+    {
+        return dataSource().getIndexDir( KEY );
+    }
+    
+    private Node indexNewNode( String value )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            Node node = graphDb.createNode();
+            index.index( node, KEY, value );
+            tx.success();
+            return node;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+    
+    private Node getSingleNode( String value )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            return index.getSingleNode( KEY, value );
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+    
+    @Test
+    public void testIdleWriterIsClosedWithoutFurtherCommits() throws Exception
+    {
+        stopDb();
+        startDb( "100" );
+        Node node = indexNewNode( "value" );
+        
+        long timeout = System.currentTimeMillis() + 10000;
+        while ( dataSource().isWriterOpen( KEY ) )
+        {
+            if ( System.currentTimeMillis() > timeout )
+            {
+                fail( "Idle writer wasn't closed" );
+            }
+            Thread.sleep( 10 );
+        }
+        
+        assertEquals( node, getSingleNode( "value" ) );
+        Node other = indexNewNode( "other" );
+        assertEquals( other, getSingleNode( "other" ) );
+    }
+    
+    @Test
+    public void testOpenWriterHoldsTheWriteLock() throws Exception
+    {
+        indexNewNode( "value" );
+        assertTrue( dataSource().isWriterOpen( KEY ) );
+        Directory dir = FSDirectory.open( indexDir() );
+        try
+        {
+            new IndexWriter( dir, new IndexWriterConfig(
+                LuceneDataSource.CURRENT_VERSION,
+                LuceneDataSource.LOWER_CASE_WHITESPACE_ANALYZER ) ).close();
+            fail( "Opened a second writer on an index with an open writer" );
+        }
+        catch ( LockObtainFailedException e )
+        {
+            // Good
+        }
+        finally
+        {
+            dir.close();
+        }
+    }
+    
+    @Test
+    public void testDeleteIndexWhileWriterIsOpen() throws Exception
+    {
+        indexNewNode( "value" );
+        assertTrue( dataSource().isWriterOpen( KEY ) );
+        
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            index.removeIndex( KEY );
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        assertFalse( dataSource().isWriterOpen( KEY ) );
+        assertFalse( indexDir().exists() );
+        assertNull( getSingleNode( "value" ) );
+        
+        Node node = indexNewNode( "value" );
+        assertEquals( node, getSingleNode( "value" ) );
+    }
+    
+    @Test
+    public void testShutdownClosesWritersAndReleasesLocks() throws Exception
+    {
+        Node node = indexNewNode( "value" );
+        assertTrue( dataSource().isWriterOpen( KEY ) );
+        File dir = indexDir();
+        stopDb();
+        
+        Directory directory = FSDirectory.open( dir );
+        try
+        {
+            assertFalse( IndexWriter.isLocked( directory ) );
+        }
+        finally
+        {
+            directory.close();
+        }
+        startDb( "600000" );
+        assertEquals( node, getSingleNode( "value" ) );
+    }
+}